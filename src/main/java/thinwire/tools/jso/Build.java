@@ -0,0 +1,793 @@
+package thinwire.tools.jso;
+
+/*
+ * Copyright 2001-2005 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
+
+/**
+ * Optimizes a tree of scripts into one or more output profiles that share a single
+ * name map. This is what the jso goal runs, kept free of the Maven plugin API so
+ * that {@link Main} can run it from the command line as well. Progress is reported
+ * to a {@link Log}, which writes to standard error unless one is set.
+ */
+public final class Build {
+    private static final String REPORT_FILE = "jso-bytes.json";
+    
+    public interface Log {
+        void info(CharSequence message);
+        void warn(CharSequence message);
+    }
+    
+    //A source file on its way through the pipeline stages
+    private static final class Item {
+        final int index;
+        final File file;
+        String source;
+        Script script;
+        String destPath;
+        File destFile;
+        byte[] code;
+        byte[] output;
+        
+        Item(int index, File file) {
+            this.index = index;
+            this.file = file;
+        }
+    }
+    
+    private File srcdir;
+    private File destdir;
+    private String namemap;
+    private boolean verify = true;
+    private boolean compress;
+    private boolean compactLiterals;
+    private boolean scoped;
+    private boolean aliasGlobals;
+    private boolean poolNumbers;
+    private int aliasThreshold;
+    private int parallelThreshold = 1048576;
+    private int threads;
+    private int ioThreads = 16;
+    private int queueSize = 16;
+    private boolean byteReport;
+    private int byteReportTop = 20;
+    private int lazyThreshold;
+    private List<String> lazyFiles;
+    private List<String> includes;
+    private List<String> excludes;
+    private File hotProfile;
+    private boolean instrument;
+    private int functionThreshold;
+    private int sketchThreshold;
+    private List<Profile> profiles;
+    private long analysisPeakHeap;
+    private Log log = new Log() {
+        public void info(CharSequence message) {
+            System.err.println(message);
+        }
+        
+        public void warn(CharSequence message) {
+            System.err.println("WARNING: " + message);
+        }
+    };
+    
+    public Log getLog() {
+        return log;
+    }
+    
+    public void setLog(Log log) {
+        this.log = log;
+    }
+    
+    public File getSrcdir() {
+        return srcdir;
+    }
+    
+    public void setSrcdir(File srcdir) {
+        this.srcdir = srcdir;
+    }
+    
+    public File getDestdir() {
+        return destdir;
+    }
+    
+    public void setDestdir(File destdir) {
+        this.destdir = destdir;
+    }
+    
+    public String getNamemap() {
+        return namemap;
+    }
+    
+    public void setNamemap(String namemap) {
+        this.namemap = namemap;
+    }
+    
+    public boolean isVerify() {
+        return verify;
+    }
+    
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+    
+    public boolean isCompress() {
+        return compress;
+    }
+    
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+    
+    public boolean isCompactLiterals() {
+        return compactLiterals;
+    }
+    
+    public void setCompactLiterals(boolean compactLiterals) {
+        this.compactLiterals = compactLiterals;
+    }
+    
+    public boolean isScoped() {
+        return scoped;
+    }
+    
+    public void setScoped(boolean scoped) {
+        this.scoped = scoped;
+    }
+    
+    public boolean isAliasGlobals() {
+        return aliasGlobals;
+    }
+    
+    public void setAliasGlobals(boolean aliasGlobals) {
+        this.aliasGlobals = aliasGlobals;
+    }
+    
+    public boolean isPoolNumbers() {
+        return poolNumbers;
+    }
+    
+    public void setPoolNumbers(boolean poolNumbers) {
+        this.poolNumbers = poolNumbers;
+    }
+    
+    public int getAliasThreshold() {
+        return aliasThreshold;
+    }
+    
+    public void setAliasThreshold(int aliasThreshold) {
+        this.aliasThreshold = aliasThreshold;
+    }
+    
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+    
+    public void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+    
+    public int getThreads() {
+        return threads;
+    }
+    
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+    
+    public int getIoThreads() {
+        return ioThreads;
+    }
+    
+    public void setIoThreads(int ioThreads) {
+        this.ioThreads = ioThreads;
+    }
+    
+    public int getQueueSize() {
+        return queueSize;
+    }
+    
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+    
+    public boolean isByteReport() {
+        return byteReport;
+    }
+    
+    public void setByteReport(boolean byteReport) {
+        this.byteReport = byteReport;
+    }
+    
+    public int getByteReportTop() {
+        return byteReportTop;
+    }
+    
+    public void setByteReportTop(int byteReportTop) {
+        this.byteReportTop = byteReportTop;
+    }
+    
+    public int getLazyThreshold() {
+        return lazyThreshold;
+    }
+    
+    public void setLazyThreshold(int lazyThreshold) {
+        this.lazyThreshold = lazyThreshold;
+    }
+    
+    public List<String> getLazyFiles() {
+        return lazyFiles;
+    }
+    
+    public void setLazyFiles(List<String> lazyFiles) {
+        this.lazyFiles = lazyFiles;
+    }
+    
+    public List<String> getIncludes() {
+        return includes;
+    }
+    
+    public void setIncludes(List<String> includes) {
+        this.includes = includes;
+    }
+    
+    public List<String> getExcludes() {
+        return excludes;
+    }
+    
+    public void setExcludes(List<String> excludes) {
+        this.excludes = excludes;
+    }
+    
+    public File getHotProfile() {
+        return hotProfile;
+    }
+    
+    public void setHotProfile(File hotProfile) {
+        this.hotProfile = hotProfile;
+    }
+    
+    public boolean isInstrument() {
+        return instrument;
+    }
+    
+    public void setInstrument(boolean instrument) {
+        this.instrument = instrument;
+    }
+    
+    public int getFunctionThreshold() {
+        return functionThreshold;
+    }
+    
+    public void setFunctionThreshold(int functionThreshold) {
+        this.functionThreshold = functionThreshold;
+    }
+    
+    public int getSketchThreshold() {
+        return sketchThreshold;
+    }
+    
+    public void setSketchThreshold(int sketchThreshold) {
+        this.sketchThreshold = sketchThreshold;
+    }
+    
+    public List<Profile> getProfiles() {
+        return profiles;
+    }
+    
+    public void setProfiles(List<Profile> profiles) {
+        this.profiles = profiles;
+    }
+    
+    //Throws an IllegalArgumentException if a setting execute needs is missing
+    public void validate() {
+        if (srcdir == null) throw new IllegalArgumentException("srcdir must be specified");
+        if (namemap == null) throw new IllegalArgumentException("namemap must be specified");
+        
+        for (Profile p : getOutputs()) {
+            if (p.getDestdir() == null) throw new IllegalArgumentException("destdir must be specified" + (p.getName() == null ? "" : " for profile '" + p.getName() + "'"));
+        }
+    }
+    
+    public void execute() throws Exception {
+        validate();
+        final List<Profile> outputs = getOutputs();
+        
+        List<String> include = includes == null || includes.isEmpty() ? Collections.singletonList("**/*.js") : includes;
+        //Output from an earlier run must not be read back in when a destdir is inside srcdir
+        List<File> destdirs = new ArrayList<File>();
+        for (Profile p : outputs) destdirs.add(p.getDestdir().getCanonicalFile());
+        final List<File> lst = new SourceScanner(srcdir, include, excludes, destdirs).scan(threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+        log("Processing " + lst.size() + " file(s) collectively");
+        log("Source directory is " + srcdir.getCanonicalPath());
+        if (outputs.size() > 1) log("Generating " + outputs.size() + " output profiles from a single analysis");
+        
+        //Compile the files once and analyze their names for all profiles
+        Optimizer jso = new Optimizer();
+        jso.setParallelThreshold(parallelThreshold);
+        if (threads > 0) jso.setThreads(threads);
+        jso.setFunctionThreshold(functionThreshold);
+        if (functionThreshold > 0) log("Sharing of repeated functions of " + functionThreshold + " bytes or more is turned on");
+        jso.setSketchThreshold(sketchThreshold);
+        if (sketchThreshold > 0) log("Bounded-memory analysis of names and literals of " + jso.getSketchThreshold() + " characters or more is turned on");
+        
+        if (hotProfile != null) {
+            readHotProfile(jso);
+            log("Hot profile lists " + jso.getHotFunctions().size() + " function(s) and " + jso.getHotProperties().size() + " property name(s) to keep as dot access");
+        }
+        
+        log("Anaylizing name patterns...");
+        final Optimizer analyzer = jso;
+        //Bounded-memory analysis keeps no compiled scripts, each profile compiles them again
+        final Script[] scripts = sketchThreshold > 0 ? null : new Script[lst.size()];
+        Pipeline<Item> analysis = new Pipeline<Item>("analyze", queueSize);
+        addCompileStages(analysis);
+        
+        //Sketched counts depend on the order the files are analyzed in, so it is kept fixed
+        analysis.add(new Pipeline.Stage<Item>("analyze") {
+            boolean process(Item item) throws Exception {
+                analyzer.analyzeNames(item.script, getScriptName(item.file));
+                if (scripts != null) scripts[item.index] = item.script;
+                item.script = null;
+                return false;
+            }
+        });
+        
+        resetPeakHeap();
+        analysis.run(getItems(lst));
+        analysisPeakHeap = getPeakHeap();
+        logMetrics(null, analysis);
+        log("Peak heap during analysis: " + (analysisPeakHeap / 1048576) + " MB");
+        warnUnmatched(jso);
+        
+        if (outputs.size() == 1) {
+            generate(outputs.get(0), jso.derive(), lst, scripts == null ? null : Arrays.asList(scripts));
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(outputs.size(), Runtime.getRuntime().availableProcessors()));
+            List<Future<Object>> futures = new ArrayList<Future<Object>>(outputs.size());
+            
+            try {
+                for (final Profile p : outputs) {
+                    final Optimizer profileJso = jso.derive();
+                    
+                    futures.add(executor.submit(new Callable<Object>() {
+                        public Object call() throws Exception {
+                            generate(p, profileJso, lst, scripts == null ? null : Arrays.asList(scripts));
+                            return null;
+                        }
+                    }));
+                }
+                
+                for (Future<Object> f : futures) {
+                    try {
+                        f.get();
+                    } catch (ExecutionException e) {
+                        if (e.getCause() instanceof Exception) throw (Exception)e.getCause();
+                        throw e;
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+    
+    //Optimizes a single script along with its own name map, for use as a filter
+    public String optimize(Reader in, String name) throws IOException {
+        Optimizer jso = new Optimizer();
+        jso.setParallelThreshold(parallelThreshold);
+        if (threads > 0) jso.setThreads(threads);
+        if (hotProfile != null) readHotProfile(jso);
+        jso.setFunctionThreshold(functionThreshold);
+        jso.setSketchThreshold(sketchThreshold);
+        jso.setScoped(scoped || aliasGlobals || poolNumbers);
+        jso.setAliasGlobals(aliasGlobals);
+        jso.setPoolNumbers(poolNumbers);
+        jso.setCompactLiterals(compactLiterals);
+        jso.setAliasThreshold(aliasThreshold);
+        jso.setLazyThreshold(lazyThreshold);
+        jso.setInstrument(instrument);
+        Context context = enterContext();
+        
+        try {
+            Script script = context.compileReader(in, name, 1, null);
+            jso.analyzeNames(script, name);
+            warnUnmatched(jso);
+            String code = jso.generate(script, name);
+            String result = jso.getNameMapScript() + code + jso.getScopeExports() + jso.getNameMapScriptEnd();
+            if (verify) context.compileString(result, name, 1, null);
+            return result;
+        } finally {
+            Context.exit();
+        }
+    }
+    
+    //The configured profiles, or a single one made of the top level settings when none are given
+    private List<Profile> getOutputs() {
+        Profile defaults = new Profile();
+        defaults.setDestdir(destdir);
+        defaults.setCompress(compress);
+        defaults.setAliasNames(true);
+        defaults.setAliasThreshold(aliasThreshold);
+        defaults.setAliasGlobals(aliasGlobals);
+        defaults.setPoolNumbers(poolNumbers);
+        defaults.setScoped(scoped);
+        defaults.setCompactLiterals(compactLiterals);
+        defaults.setLazyThreshold(lazyThreshold);
+        defaults.setLazyFiles(lazyFiles);
+        defaults.setByteReport(byteReport);
+        defaults.setInstrument(instrument);
+        if (profiles == null || profiles.isEmpty()) return Collections.singletonList(defaults);
+        for (Profile p : profiles) p.inherit(defaults);
+        return profiles;
+    }
+    
+    private void generate(final Profile p, final Optimizer jso, List<File> lst, final List<Script> scripts) throws Exception {
+        final File destdir = p.getDestdir();
+        final boolean compress = p.isCompress();
+        boolean scoped = p.isScoped();
+        boolean aliasGlobals = p.isAliasGlobals();
+        boolean poolNumbers = p.isPoolNumbers();
+        final int lazyThreshold = p.getLazyThreshold();
+        final List<String> lazyFiles = p.getLazyFiles();
+        final boolean byteReport = p.isByteReport();
+        
+        log(p, "Destination directory is " + destdir.getCanonicalPath());
+        if (compress) log(p, "Compression is turned on");
+        
+        if (aliasGlobals && !scoped) {
+            log(p, "Global aliasing requires a scoped name map, turning it on");
+            scoped = true;
+        }
+        
+        if (poolNumbers && !scoped) {
+            log(p, "Number pooling requires a scoped name map, turning it on");
+            scoped = true;
+        }
+        
+        if (!p.isAliasNames()) log(p, "Name aliasing is turned off");
+        if (scoped) log(p, "Scoped name map is turned on");
+        if (aliasGlobals) log(p, "Global aliasing is turned on");
+        if (poolNumbers) log(p, "Number pooling is turned on");
+        if (lazyThreshold > 0) log(p, "Lazy compilation of function bodies of " + lazyThreshold + " bytes or more is turned on");
+        if (p.isInstrument()) log(p, "Instrumentation for recording a hot profile is turned on");
+        
+        jso.setAliasNames(p.isAliasNames());
+        jso.setInstrument(p.isInstrument());
+        jso.setScoped(scoped);
+        jso.setCompactLiterals(p.isCompactLiterals());
+        jso.setAliasGlobals(aliasGlobals);
+        jso.setPoolNumbers(poolNumbers);
+        jso.setAliasThreshold(p.getAliasThreshold());
+        
+        byte[] nmAry = jso.getNameMapScript().getBytes();
+        log(p, "Generated name map of size " + nmAry.length + " bytes");
+        Map<String, Integer> excluded = jso.getExcludedNames();
+        
+        if (excluded.size() > 0) {
+            log(p, "Excluded " + excluded.size() + " repeated name(s) from the name map, net savings at or below " + p.getAliasThreshold() + " bytes:");
+            for (Map.Entry<String, Integer> e : excluded.entrySet()) log(p, "  '" + e.getKey() + "' " + e.getValue() + " bytes");
+        }
+        
+        //Before and after sizes are only added up by the generate stage, compressed sizes by the write stage
+        final long[] totals = new long[] {0, nmAry.length};
+        final AtomicLong compressTotal = new AtomicLong();
+        File fNameMap = new File(destdir, getDestPath(new File(srcdir, namemap)));
+        final File fNameMapDest = fNameMap;
+        ByteArrayOutputStream baosNameMap = new ByteArrayOutputStream();
+        OutputStream osNameMap = baosNameMap;
+        if (compress) osNameMap = new GZIPOutputStream(osNameMap);
+        osNameMap.write(nmAry);
+        final OutputStream osNameMapCode = osNameMap;
+        
+        log(p, "Generating optimized scripts...");
+        final StringBuilder report = new StringBuilder();
+        Pipeline<Item> pipeline = new Pipeline<Item>(p.getName() == null ? "generate" : p.getName(), queueSize);
+        if (scripts == null) addCompileStages(pipeline);
+        
+        pipeline.add(new Pipeline.Stage<Item>("generate") {
+            boolean process(Item item) throws Exception {
+                Script script = scripts == null ? item.script : scripts.get(item.index);
+                item.script = null;
+                item.destPath = getDestPath(item.file);
+                boolean lazy = lazyFiles == null || lazyFiles.isEmpty() || lazyFiles.contains(item.destPath.replace('\\', '/'));
+                jso.setLazyThreshold(lazy ? lazyThreshold : 0);
+                if (byteReport) jso.setByteReport(new ByteReport());
+                String code = jso.generate(script, getScriptName(item.file));
+                
+                if (byteReport) {
+                    report.append(report.length() == 0 ? "\n" : ",\n").append(jso.getByteReport().toJson(item.destPath, byteReportTop));
+                }
+                
+                item.destFile = new File(destdir, item.destPath);
+                boolean attached = item.destFile.equals(fNameMapDest);
+                byte[] ary = (attached ? code : jso.wrapScope(code)).getBytes();
+                item.code = ary;
+                
+                float before = (float)item.file.length();
+                totals[0] += before;
+                totals[1] += ary.length;
+                log(p, "Optimized file '" + item.destPath + "' from " + (int)before + " to " + ary.length + " bytes, " + ((10000 - Math.round((ary.length / before) * 10000)) / 100) + "% reduction");
+                
+                if (attached) {
+                    log(p, "Attaching name map to beginning of '" + item.destPath + "'");
+                    osNameMapCode.write(ary);
+                    byte[] exports = jso.getScopeExports().getBytes();
+                    totals[1] += exports.length;
+                    osNameMapCode.write(exports);
+                } else {
+                    item.output = ary;
+                }
+                
+                return true;
+            }
+        });
+        
+        if (verify) {
+            pipeline.add(new Pipeline.Stage<Item>("verify", getCpuThreads(), false) {
+                void begin() {
+                    enterContext();
+                }
+                
+                boolean process(Item item) throws Exception {
+                    log(p, "Verifying file '" + item.destPath + "' for syntactic accuracy");
+                    Context.getCurrentContext().compileReader(new InputStreamReader(new ByteArrayInputStream(item.code)), item.destFile.getCanonicalPath(), 1, null);
+                    item.code = null;
+                    return item.output != null;
+                }
+                
+                void end() {
+                    Context.exit();
+                }
+            });
+        }
+        
+        if (compress) {
+            pipeline.add(new Pipeline.Stage<Item>("compress", getCpuThreads(), false) {
+                boolean process(Item item) throws Exception {
+                    if (item.output == null) return false;
+                    ByteArrayOutputStream baos = new ByteArrayOutputStream(item.output.length / 4 + 64);
+                    GZIPOutputStream gzos = new GZIPOutputStream(baos);
+                    gzos.write(item.output);
+                    gzos.close();
+                    item.output = baos.toByteArray();
+                    return true;
+                }
+            });
+        }
+        
+        pipeline.add(new Pipeline.Stage<Item>("write", ioThreads, true) {
+            boolean process(Item item) throws Exception {
+                if (item.output == null) return false;
+                File destFile = item.destFile;
+                destFile.getParentFile().mkdirs();
+
+                if (destFile.exists()) {
+                    destFile.delete();
+                    destFile = new File(destFile.getAbsolutePath());
+                    log(p, "destFile=" + destFile.getCanonicalPath() + ",exists=" + destFile.exists());
+                }
+                
+                OutputStream fos = new FileOutputStream(destFile);
+                fos.write(item.output);
+                fos.close();
+                if (compress) compressTotal.addAndGet(item.output.length);
+                return true;
+            }
+        });
+        
+        pipeline.run(getItems(lst));
+        float beforeTotal = totals[0];
+        float afterTotal = totals[1];
+        byte[] nmEnd = jso.getNameMapScriptEnd().getBytes();
+        afterTotal += nmEnd.length;
+        osNameMap.write(nmEnd);
+        fNameMap.getParentFile().mkdirs();
+        
+        if (fNameMap.exists()) {
+            fNameMap.delete();
+            fNameMap = new File(fNameMap.getAbsolutePath());
+        }
+        
+        osNameMap.close();
+        baosNameMap.writeTo(osNameMap = new FileOutputStream(fNameMap));
+        osNameMap.close();
+        
+        if (compress) compressTotal.addAndGet(fNameMap.length());
+        
+        if (byteReport) {
+            File fReport = new File(destdir, REPORT_FILE);
+            log(p, "Writing byte attribution report to '" + fReport.getCanonicalPath() + "'");
+            OutputStream osReport = new FileOutputStream(fReport);
+            osReport.write(("{\"nameMapBytes\":" + nmAry.length + ",\"analysisPeakHeap\":" + analysisPeakHeap + ",\"files\":[" + report + "\n]}\n").getBytes("UTF-8"));
+            osReport.close();
+        }
+
+        logMetrics(p, pipeline);
+        if (jso.getFunctionCount() > 0) log(p, "Shared " + jso.getFunctionCount() + " repeated function(s), saving " + jso.getFunctionSavings() + " bytes");
+        log(p, "Optimization of all files: " + (int)beforeTotal + " to " + (int)afterTotal + " bytes, " + ((10000 - Math.round((afterTotal / beforeTotal) * 10000)) / 100) + "% reduction");
+        
+        if (compress) {
+            float compressed = compressTotal.get();
+            log(p, "Compression of all files: " + (int)afterTotal + " to " + (int)compressed + " bytes, " + ((10000 - Math.round((compressed / afterTotal) * 10000)) / 100) + "% reduction");
+            log(p, "Total reduction of all files: " + (int)beforeTotal + " to " + (int)compressed + " bytes, " + ((10000 - Math.round((compressed / beforeTotal) * 10000)) / 100) + "% reduction");
+        }
+    }
+    
+    private static List<Item> getItems(List<File> lst) {
+        List<Item> items = new ArrayList<Item>(lst.size());
+        for (int i = 0, cnt = lst.size(); i < cnt; i++) items.add(new Item(i, lst.get(i)));
+        return items;
+    }
+    
+    private static String readFile(File f) throws IOException {
+        InputStreamReader isr = new InputStreamReader(new FileInputStream(f));
+        StringBuilder sb = new StringBuilder((int)f.length());
+        char[] buf = new char[8192];
+        
+        try {
+            for (int len; (len = isr.read(buf)) != -1;) sb.append(buf, 0, len);
+        } finally {
+            isr.close();
+        }
+        
+        return sb.toString();
+    }
+    
+    //Reads and compiles the files, in whatever order the threads get to them
+    private void addCompileStages(Pipeline<Item> pipeline) {
+        pipeline.add(new Pipeline.Stage<Item>("read", ioThreads, true) {
+            boolean process(Item item) throws Exception {
+                item.source = readFile(item.file);
+                return true;
+            }
+        }).add(new Pipeline.Stage<Item>("compile", getCpuThreads(), false) {
+            void begin() {
+                enterContext();
+            }
+            
+            boolean process(Item item) throws Exception {
+                item.script = Context.getCurrentContext().compileString(item.source, item.file.getCanonicalPath(), 1, null);
+                item.source = null;
+                return true;
+            }
+            
+            void end() {
+                Context.exit();
+            }
+        });
+    }
+    
+    //Only the encoded source is needed, compiling to bytecode would fail on scripts of a few hundred kilobytes and up
+    private static Context enterContext() {
+        Context context = Context.enter();
+        context.setOptimizationLevel(-1);
+        return context;
+    }
+    
+    private int getCpuThreads() {
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+    
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) pool.resetPeakUsage();
+        }
+    }
+    
+    //Sum of the heap pools' peaks since the last reset, an upper bound since the pools need not peak at the same time
+    private static long getPeakHeap() {
+        long peak = 0;
+        
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) peak += pool.getPeakUsage().getUsed();
+        }
+        
+        return peak;
+    }
+    
+    private void logMetrics(Profile p, Pipeline<?> pipeline) {
+        log(p, "Pipeline stages:");
+        for (String line : pipeline.getMetrics()) log(p, "  " + line);
+    }
+    
+    //Hot functions the profile was recorded with but that were since edited, renamed or removed keep their properties aliased
+    private void warnUnmatched(Optimizer jso) {
+        for (String key : jso.getUnmatchedHotFunctions()) {
+            log.warn("Hot profile function '" + key + "' matches no function in the sources, record the profile again");
+        }
+    }
+    
+    //Lines are 'function <name>@<hash>' as reported by an instrumented build, or 'property <name>'
+    private void readHotProfile(Optimizer jso) throws IOException {
+        Set<String> functions = new HashSet<String>();
+        Set<String> properties = new HashSet<String>();
+        BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(hotProfile), "UTF-8"));
+        
+        try {
+            for (String line; (line = br.readLine()) != null;) {
+                line = line.trim();
+                
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                } else if (line.startsWith("function ")) {
+                    functions.add(line.substring(9).trim());
+                } else if (line.startsWith("property ")) {
+                    properties.add(line.substring(9).trim());
+                } else {
+                    throw new IOException("Invalid line in hot profile '" + hotProfile + "': " + line);
+                }
+            }
+        } finally {
+            br.close();
+        }
+        
+        jso.setHotProfile(functions, properties);
+    }
+    
+    private String getScriptName(File f) throws IOException {
+        return getDestPath(f).replace('\\', '/');
+    }
+    
+    private void log(Profile p, CharSequence message) {
+        log(p == null || p.getName() == null ? message : "[" + p.getName() + "] " + message);
+    }
+    
+    private void log(CharSequence message) {
+        log.info(message);
+    }
+    
+    //Links are not resolved, a linked file is written where the link is even when it points outside srcdir
+    private String getDestPath(File f) throws IOException {
+        String fPath = f.toPath().toAbsolutePath().normalize().toString();
+        
+        for (String srcPath : new String[] {srcdir.getCanonicalPath(), srcdir.toPath().toAbsolutePath().normalize().toString()}) {
+            if (fPath.startsWith(srcPath + File.separator)) return fPath.substring(srcPath.length() + 1);
+        }
+        
+        throw new IOException("File '" + fPath + "' is not inside the source directory " + srcdir.getCanonicalPath());
+    }
+}
@@ -0,0 +1,177 @@
+/*
+                          ThinWire(R) JavaScript Optimizer
+                        Copyright (C) 2003-2008 ThinWire LLC
+
+  This library is free software; you can redistribute it and/or modify it under
+  the terms of the GNU Lesser General Public License as published by the Free
+  Software Foundation; either version 2.1 of the License, or (at your option) any
+  later version.
+
+  This library is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License along
+  with this library; if not, write to the Free Software Foundation, Inc., 59
+  Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+  Users who would rather have a commercial license, warranty or support should
+  contact the following company who supports the technology:
+  
+            ThinWire LLC, 5919 Greenville #335, Dallas, TX 75206-1906
+   	            email: info@thinwire.com    ph: +1 (214) 295-4859
+ 	                        http://www.thinwire.com
+*/
+package thinwire.tools.jso;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Attributes the bytes of an optimized script to the kind of token that produced
+ * them, and keeps track of the identifiers left at full length and the long string
+ * literals that were not aliased, since those are the biggest candidates for
+ * further reduction. Set one on an {@link Optimizer} before calling generate.
+ * Function bodies that are compiled lazily end up as one string literal, so their
+ * bytes are counted as {@link Category#LAZY} instead.
+ */
+public final class ByteReport {
+    public enum Category {
+        IDENTIFIER, STRING, NUMBER, KEYWORD, PUNCTUATION, ALIASED, LAZY
+    }
+
+    private static final int LONG_STRING_LENGTH = 32;
+
+    private long[] bytes;
+    private Map<String, int[]> identifiers;
+    private Map<String, int[]> strings;
+
+    public ByteReport() {
+        bytes = new long[Category.values().length];
+        identifiers = new HashMap<String, int[]>();
+        strings = new HashMap<String, int[]>();
+    }
+
+    public long getBytes(Category category) {
+        return bytes[category.ordinal()];
+    }
+
+    public long getTotalBytes() {
+        long total = 0;
+        for (long b : bytes) total += b;
+        return total;
+    }
+
+    void add(Category category, int length) {
+        bytes[category.ordinal()] += length;
+    }
+
+    long[] snapshot() {
+        return bytes.clone();
+    }
+
+    //Takes back the bytes added since the snapshot, the identifier and string counts are kept
+    void restore(long[] snapshot) {
+        System.arraycopy(snapshot, 0, bytes, 0, bytes.length);
+    }
+
+    void addIdentifier(String name) {
+        count(identifiers, name);
+    }
+
+    void addString(String literal) {
+        if (literal.length() >= LONG_STRING_LENGTH) count(strings, literal);
+    }
+
+    void merge(ByteReport report) {
+        for (int i = 0; i < bytes.length; i++) bytes[i] += report.bytes[i];
+        merge(identifiers, report.identifiers);
+        merge(strings, report.strings);
+    }
+
+    public String toJson(String file, int top) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"file\":");
+        appendString(sb, file);
+        sb.append(",\"totalBytes\":").append(getTotalBytes()).append(",\"bytes\":{");
+
+        for (Category c : Category.values()) {
+            if (c.ordinal() > 0) sb.append(',');
+            appendString(sb, c.name().toLowerCase());
+            sb.append(':').append(bytes[c.ordinal()]);
+        }
+
+        sb.append("},\"topIdentifiers\":");
+        appendTop(sb, identifiers, top);
+        sb.append(",\"longStrings\":");
+        appendTop(sb, strings, top);
+        sb.append('}');
+        return sb.toString();
+    }
+
+    private static void appendTop(StringBuilder sb, Map<String, int[]> counts, int top) {
+        List<Map.Entry<String, int[]>> entries = new ArrayList<Map.Entry<String, int[]>>(counts.entrySet());
+
+        Collections.sort(entries, new Comparator<Map.Entry<String, int[]>>() {
+            public int compare(Map.Entry<String, int[]> o1, Map.Entry<String, int[]> o2) {
+                long b1 = (long)o1.getKey().length() * o1.getValue()[0];
+                long b2 = (long)o2.getKey().length() * o2.getValue()[0];
+                if (b1 > b2) return -1;
+                else if (b1 < b2) return 1;
+                else return o1.getKey().compareTo(o2.getKey());
+            }
+        });
+
+        sb.append('[');
+
+        for (int i = 0, cnt = Math.min(top, entries.size()); i < cnt; i++) {
+            Map.Entry<String, int[]> e = entries.get(i);
+            int count = e.getValue()[0];
+            if (i > 0) sb.append(',');
+            sb.append("{\"value\":");
+            appendString(sb, e.getKey());
+            sb.append(",\"count\":").append(count).append(",\"bytes\":").append((long)e.getKey().length() * count).append('}');
+        }
+
+        sb.append(']');
+    }
+
+    static void appendString(StringBuilder sb, String str) {
+        sb.append('"');
+
+        for (int i = 0, cnt = str.length(); i < cnt; i++) {
+            char c = str.charAt(i);
+
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20 || c > 0x7e) {
+                String hex = Integer.toHexString(c);
+                sb.append("\\u");
+                for (int num = 4 - hex.length(); --num >= 0;) sb.append('0');
+                sb.append(hex);
+            } else {
+                sb.append(c);
+            }
+        }
+
+        sb.append('"');
+    }
+
+    private static void count(Map<String, int[]> counts, String key) {
+        int[] count = counts.get(key);
+        if (count == null) counts.put(key, count = new int[1]);
+        count[0]++;
+    }
+
+    private static void merge(Map<String, int[]> counts, Map<String, int[]> other) {
+        for (Map.Entry<String, int[]> e : other.entrySet()) {
+            int[] count = counts.get(e.getKey());
+            if (count == null) counts.put(e.getKey(), count = new int[1]);
+            count[0] += e.getValue()[0];
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package thinwire.tools.jso;
+
+/*
+ * Copyright 2001-2005 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+
+/**
+ * Synthetic ThinWire-like scripts, made of function statements and prototype
+ * methods that use the same DOM properties and string constants over and over.
+ * The content is seeded by the file count and size, so the same arguments always
+ * produce the same corpus. It is the workload of the scaling benchmark and of the
+ * command line's training run.
+ */
+final class Corpus {
+    private static final String[] PROPERTIES = {
+        "style", "left", "top", "width", "height", "backgroundColor", "color", "display",
+        "visibility", "zIndex", "parentNode", "appendChild", "removeChild", "firstChild",
+        "childNodes", "className", "innerHTML", "offsetWidth", "offsetHeight", "length",
+        "push", "setAttribute", "getAttribute", "onclick", "onmousedown", "prototype"
+    };
+
+    private static final String[] STRINGS = {
+        "px", "none", "block", "hidden", "visible", "absolute", "relative", "#ffffff",
+        "#000000", "div", "span", "tw_Component", "tw_Button", "tw_TextField", "click"
+    };
+
+    private Corpus() { }
+
+    //Writes files named 'file<n>.js' of about size bytes each into dir, returns the bytes written
+    static long write(File dir, int files, int size) throws IOException {
+        dir.mkdirs();
+        Random random = new Random(files * 31L + size);
+        long total = 0;
+
+        for (int i = 0; i < files; i++) {
+            File f = new File(dir, "file" + i + ".js");
+            Writer w = new OutputStreamWriter(new FileOutputStream(f));
+            StringBuilder sb = new StringBuilder();
+            int written = 0;
+
+            for (int fn = 0; written + sb.length() < size; fn++) {
+                appendFunction(sb, random, "tw_F" + i + "_" + fn);
+
+                if (sb.length() > 65536) {
+                    written += sb.length();
+                    w.write(sb.toString());
+                    sb.setLength(0);
+                }
+            }
+
+            written += sb.length();
+            w.write(sb.toString());
+            w.close();
+            total += written;
+        }
+
+        return total;
+    }
+
+    static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) for (File c : children) delete(c);
+        f.delete();
+    }
+
+    private static void appendFunction(StringBuilder sb, Random random, String name) {
+        boolean statement = random.nextBoolean();
+
+        if (statement) {
+            sb.append("function ").append(name).append("(elem, value) {\n");
+        } else {
+            sb.append("tw_Component.prototype.").append(name).append(" = function(elem, value) {\n");
+        }
+
+        sb.append("    var s = elem.").append(pick(random, PROPERTIES)).append(";\n");
+
+        for (int stmts = 2 + random.nextInt(8); --stmts >= 0;) {
+            switch (random.nextInt(5)) {
+            case 0:
+                sb.append("    s.").append(pick(random, PROPERTIES)).append(" = value + \"").append(pick(random, STRINGS)).append("\";\n");
+                break;
+
+            case 1:
+                sb.append("    if (elem.").append(pick(random, PROPERTIES)).append(" > ").append(random.nextInt(1000))
+                    .append(") elem.").append(pick(random, PROPERTIES)).append(" = \"").append(pick(random, STRINGS)).append("\";\n");
+                break;
+
+            case 2:
+                sb.append("    for (var i = 0; i < elem.").append(pick(random, PROPERTIES)).append(".length; i++) {\n")
+                    .append("        elem.").append(pick(random, PROPERTIES)).append("[i].").append(pick(random, PROPERTIES))
+                    .append(" = i * ").append(random.nextInt(100)).append(";\n    }\n");
+                break;
+
+            case 3:
+                sb.append("    elem.").append(pick(random, PROPERTIES)).append(" = function() { return value.")
+                    .append(pick(random, PROPERTIES)).append("; };\n");
+                break;
+
+            default:
+                sb.append("    value = document.createElement(\"").append(pick(random, STRINGS)).append("\");\n");
+                break;
+            }
+        }
+
+        sb.append("    return s;\n}").append(statement ? "\n" : ";\n");
+    }
+
+    private static String pick(Random random, String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+}
@@ -0,0 +1,97 @@
+/*
+                          ThinWire(R) JavaScript Optimizer
+                        Copyright (C) 2003-2008 ThinWire LLC
+
+  This library is free software; you can redistribute it and/or modify it under
+  the terms of the GNU Lesser General Public License as published by the Free
+  Software Foundation; either version 2.1 of the License, or (at your option) any
+  later version.
+
+  This library is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License along
+  with this library; if not, write to the Free Software Foundation, Inc., 59
+  Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+  Users who would rather have a commercial license, warranty or support should
+  contact the following company who supports the technology:
+  
+            ThinWire LLC, 5919 Greenville #335, Dallas, TX 75206-1906
+   	            email: info@thinwire.com    ph: +1 (214) 295-4859
+ 	                        http://www.thinwire.com
+*/
+package thinwire.tools.jso;
+
+import java.util.Arrays;
+
+/**
+ * Approximate occurrence counts of strings in a fixed amount of memory. Each key
+ * is hashed into one counter per row and its count is estimated as the smallest of
+ * those counters, so the estimate is never below the true count, only above it
+ * when other keys share all of its counters. Counters are updated conservatively,
+ * only those at the current minimum are raised, and saturate at 127 since the
+ * optimizer only needs to tell a first occurrence from a repeated one.
+ */
+final class CountMinSketch {
+    private static final int DEPTH = 4;
+    private final byte[][] counters;
+    private final int mask;
+
+    //Width is rounded up to a power of two
+    CountMinSketch(int width) {
+        int w = Integer.highestOneBit(Math.max(16, width - 1) << 1);
+        counters = new byte[DEPTH][w];
+        mask = w - 1;
+    }
+
+    //Counts one occurrence of key and returns the estimate of its count before it
+    int add(String key) {
+        int h1 = key.hashCode();
+        int h2 = hash(key);
+        int min = Byte.MAX_VALUE;
+
+        for (int i = 0; i < DEPTH; i++) {
+            min = Math.min(min, counters[i][(h1 + i * h2) & mask]);
+        }
+
+        if (min < Byte.MAX_VALUE) {
+            for (int i = 0; i < DEPTH; i++) {
+                byte[] row = counters[i];
+                int j = (h1 + i * h2) & mask;
+                if (row[j] == min) row[j]++;
+            }
+        }
+
+        return min;
+    }
+
+    void clear() {
+        for (byte[] row : counters) Arrays.fill(row, (byte)0);
+    }
+
+    //64-bit FNV-1a, for telling apart keys whose counters collide
+    static long fingerprint(String key) {
+        long h = 0xCBF29CE484222325L;
+
+        for (int i = 0, cnt = key.length(); i < cnt; i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001B3L;
+        }
+
+        return h;
+    }
+
+    //FNV-1a, independent of String.hashCode and forced odd so every row gets a different counter
+    private static int hash(String key) {
+        int h = 0x811C9DC5;
+
+        for (int i = 0, cnt = key.length(); i < cnt; i++) {
+            h ^= key.charAt(i);
+            h *= 0x01000193;
+        }
+
+        return h | 1;
+    }
+}
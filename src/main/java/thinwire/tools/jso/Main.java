@@ -0,0 +1,275 @@
+package thinwire.tools.jso;
+
+/*
+ * Copyright 2001-2005 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Runs the optimizer from the command line, without Maven. The options are the
+ * parameters of the jso goal, each given as '-name value', with lists separated by
+ * commas:
+ *
+ * Usage: Main -srcdir dir -destdir dir -namemap file.js [-verify true] [-compress false]
+ *             [-compactLiterals false] [-scoped false] [-aliasGlobals false] [-poolNumbers false]
+ *             [-aliasThreshold 0] [-parallelThreshold 1048576] [-threads 0] [-ioThreads 16]
+ *             [-queueSize 16] [-byteReport false] [-byteReportTop 20] [-lazyThreshold 0]
+ *             [-lazyFiles a.js,b.js] [-includes **&#47;*.js] [-excludes ...] [-hotProfile file]
+ *             [-instrument false] [-functionThreshold 0] [-sketchThreshold 0]
+ *             [-profiles name:destdir=dir,compress=true;...] [-quiet false]
+ *        Main [options] &lt; script.js &gt; script.min.js
+ *        Main -train true
+ *
+ * The -profiles option lists output profiles separated by ';', each a name followed
+ * by ':' and the profile's settings as 'setting=value' separated by commas, e.g.
+ * 'debug:destdir=out/debug,aliasNames=false;min:destdir=out/min,lazyFiles=a.js,b.js'.
+ * Settings left out of a profile are taken from the other options.
+ *
+ * Without -srcdir a single script is read from standard input and written to
+ * standard output along with its name map, gzipped if -compress is on. The -train
+ * option runs a small built-in workload and exits. The cli build profile uses it to
+ * record a class data sharing archive, so that later runs start without loading
+ * and verifying the classes again.
+ */
+public final class Main {
+    private final Build build = new Build();
+    private boolean quiet;
+    private boolean train;
+
+    public static void main(String[] args) throws Exception {
+        Main main = new Main();
+
+        //Only mistakes in the arguments print the usage, failures of the build itself are thrown as they are
+        try {
+            main.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(getUsage(e));
+            System.exit(1);
+        }
+
+        main.run();
+    }
+
+    Build getBuild() {
+        return build;
+    }
+
+    boolean isQuiet() {
+        return quiet;
+    }
+
+    boolean isTrain() {
+        return train;
+    }
+
+    //Mistakes in the arguments are thrown as IllegalArgumentException, with a message for the usage
+    void parse(String[] args) {
+        if (args.length % 2 != 0) throw new IllegalArgumentException("Missing value for option " + args[args.length - 1]);
+
+        for (int i = 0; i < args.length; i += 2) {
+            String name = args[i];
+            String value = args[i + 1];
+
+            if (name.equals("-srcdir")) {
+                build.setSrcdir(new File(value));
+            } else if (name.equals("-destdir")) {
+                build.setDestdir(new File(value));
+            } else if (name.equals("-namemap")) {
+                build.setNamemap(value);
+            } else if (name.equals("-verify")) {
+                build.setVerify(Boolean.valueOf(value));
+            } else if (name.equals("-compress")) {
+                build.setCompress(Boolean.valueOf(value));
+            } else if (name.equals("-compactLiterals")) {
+                build.setCompactLiterals(Boolean.valueOf(value));
+            } else if (name.equals("-scoped")) {
+                build.setScoped(Boolean.valueOf(value));
+            } else if (name.equals("-aliasGlobals")) {
+                build.setAliasGlobals(Boolean.valueOf(value));
+            } else if (name.equals("-poolNumbers")) {
+                build.setPoolNumbers(Boolean.valueOf(value));
+            } else if (name.equals("-aliasThreshold")) {
+                build.setAliasThreshold(Integer.parseInt(value));
+            } else if (name.equals("-parallelThreshold")) {
+                build.setParallelThreshold(Integer.parseInt(value));
+            } else if (name.equals("-threads")) {
+                build.setThreads(Integer.parseInt(value));
+            } else if (name.equals("-ioThreads")) {
+                build.setIoThreads(Integer.parseInt(value));
+            } else if (name.equals("-queueSize")) {
+                build.setQueueSize(Integer.parseInt(value));
+            } else if (name.equals("-byteReport")) {
+                build.setByteReport(Boolean.valueOf(value));
+            } else if (name.equals("-byteReportTop")) {
+                build.setByteReportTop(Integer.parseInt(value));
+            } else if (name.equals("-lazyThreshold")) {
+                build.setLazyThreshold(Integer.parseInt(value));
+            } else if (name.equals("-lazyFiles")) {
+                build.setLazyFiles(parseList(value));
+            } else if (name.equals("-includes")) {
+                build.setIncludes(parseList(value));
+            } else if (name.equals("-excludes")) {
+                build.setExcludes(parseList(value));
+            } else if (name.equals("-hotProfile")) {
+                build.setHotProfile(new File(value));
+            } else if (name.equals("-instrument")) {
+                build.setInstrument(Boolean.valueOf(value));
+            } else if (name.equals("-functionThreshold")) {
+                build.setFunctionThreshold(Integer.parseInt(value));
+            } else if (name.equals("-sketchThreshold")) {
+                build.setSketchThreshold(Integer.parseInt(value));
+            } else if (name.equals("-profiles")) {
+                build.setProfiles(parseProfiles(value));
+            } else if (name.equals("-quiet")) {
+                quiet = Boolean.valueOf(value);
+            } else if (name.equals("-train")) {
+                train = Boolean.valueOf(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + name);
+            }
+        }
+
+        if (!train && build.getSrcdir() != null) build.validate();
+    }
+
+    private void run() throws Exception {
+        if (quiet || train) {
+            build.setLog(new Build.Log() {
+                public void info(CharSequence message) { }
+                public void warn(CharSequence message) { }
+            });
+        }
+
+        if (train) {
+            train(build);
+        } else if (build.getSrcdir() == null) {
+            OutputStream os = System.out;
+            if (build.isCompress()) os = new GZIPOutputStream(os);
+            os.write(build.optimize(new InputStreamReader(System.in), "stdin").getBytes());
+            os.close();
+        } else {
+            build.execute();
+        }
+    }
+
+    //Exercises every stage of a build once, so that the classes it needs are loaded
+    private static void train(Build build) throws Exception {
+        File root = File.createTempFile("jso-train", "");
+        root.delete();
+        File srcdir = new File(root, "src");
+
+        try {
+            Corpus.write(srcdir, 8, 16384);
+            build.setSrcdir(srcdir);
+            build.setDestdir(new File(root, "dest"));
+            build.setNamemap("file0.js");
+            build.setCompress(true);
+            build.execute();
+            Reader in = new InputStreamReader(new FileInputStream(new File(srcdir, "file1.js")));
+
+            try {
+                build.optimize(in, "file1.js");
+            } finally {
+                in.close();
+            }
+        } finally {
+            Corpus.delete(root);
+        }
+    }
+
+    private static List<String> parseList(String value) {
+        return Arrays.asList(value.split("\\s*,\\s*"));
+    }
+
+    //A part of a profile's settings without '=' continues the list value before it, e.g. 'lazyFiles=a.js,b.js'
+    private static List<Profile> parseProfiles(String value) {
+        List<Profile> profiles = new ArrayList<Profile>();
+
+        for (String spec : value.split("\\s*;\\s*")) {
+            if (spec.length() == 0) continue;
+            int colon = spec.indexOf(':');
+            if (colon <= 0) throw new IllegalArgumentException("Missing name for profile '" + spec + "'");
+            Profile p = new Profile();
+            p.setName(spec.substring(0, colon).trim());
+            String setting = null;
+            StringBuilder settingValue = new StringBuilder();
+
+            for (String part : spec.substring(colon + 1).split("\\s*,\\s*")) {
+                int eq = part.indexOf('=');
+
+                if (eq >= 0) {
+                    if (setting != null) setProfile(p, setting, settingValue.toString());
+                    setting = part.substring(0, eq).trim();
+                    settingValue.setLength(0);
+                    settingValue.append(part.substring(eq + 1).trim());
+                } else if (setting != null) {
+                    settingValue.append(',').append(part);
+                } else if (part.length() > 0) {
+                    throw new IllegalArgumentException("Invalid setting '" + part + "' for profile '" + p.getName() + "'");
+                }
+            }
+
+            if (setting != null) setProfile(p, setting, settingValue.toString());
+            profiles.add(p);
+        }
+
+        return profiles;
+    }
+
+    private static void setProfile(Profile p, String setting, String value) {
+        if (setting.equals("destdir")) {
+            p.setDestdir(new File(value));
+        } else if (setting.equals("compress")) {
+            p.setCompress(Boolean.valueOf(value));
+        } else if (setting.equals("aliasNames")) {
+            p.setAliasNames(Boolean.valueOf(value));
+        } else if (setting.equals("aliasThreshold")) {
+            p.setAliasThreshold(Integer.parseInt(value));
+        } else if (setting.equals("aliasGlobals")) {
+            p.setAliasGlobals(Boolean.valueOf(value));
+        } else if (setting.equals("poolNumbers")) {
+            p.setPoolNumbers(Boolean.valueOf(value));
+        } else if (setting.equals("scoped")) {
+            p.setScoped(Boolean.valueOf(value));
+        } else if (setting.equals("compactLiterals")) {
+            p.setCompactLiterals(Boolean.valueOf(value));
+        } else if (setting.equals("lazyThreshold")) {
+            p.setLazyThreshold(Integer.parseInt(value));
+        } else if (setting.equals("lazyFiles")) {
+            p.setLazyFiles(parseList(value));
+        } else if (setting.equals("byteReport")) {
+            p.setByteReport(Boolean.valueOf(value));
+        } else if (setting.equals("instrument")) {
+            p.setInstrument(Boolean.valueOf(value));
+        } else {
+            throw new IllegalArgumentException("Unknown setting '" + setting + "' for profile '" + p.getName() + "'");
+        }
+    }
+
+    static String getUsage(IllegalArgumentException e) {
+        String message = e instanceof NumberFormatException ? "Invalid number, " + e.getMessage() : e.getMessage();
+        return message + "\nUsage: Main -srcdir dir -destdir dir -namemap file.js [-option value]...\n"
+                + "       Main [-option value]... < script.js > script.min.js";
+    }
+}
@@ -16,22 +16,11 @@ package thinwire.tools.jso;
  * limitations under the License.
  */
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.util.ArrayList;
 import java.util.List;
-import java.util.zip.GZIPOutputStream;
 
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
-import org.mozilla.javascript.Context;
-import org.mozilla.javascript.Script;
 
 /**
  * 
@@ -47,7 +36,6 @@ public class MyMojo extends AbstractMojo {
     private File srcdir;
     /**
      * @parameter
-     * @required
      */
     private File destdir;
     /**
@@ -65,128 +53,160 @@ public class MyMojo extends AbstractMojo {
      * @parameter
      */
     private boolean compress;
+    
+    /**
+     * Writes numbers in their shortest form and strings with the quote character that
+     * needs fewer escapes. Off by default, so existing builds keep their output.
+     * 
+     * @parameter
+     */
+    private boolean compactLiterals;
+    
+    /**
+     * @parameter
+     */
+    private boolean scoped;
+    
+    /**
+     * @parameter
+     */
+    private boolean aliasGlobals;
+    
+    /**
+     * @parameter
+     */
+    private boolean poolNumbers;
+    
+    /**
+     * @parameter default-value=0
+     */
+    private int aliasThreshold;
+    
+    /**
+     * @parameter default-value=1048576
+     */
+    private int parallelThreshold;
+    
+    /**
+     * @parameter default-value=0
+     */
+    private int threads;
+    
+    /**
+     * @parameter default-value=16
+     */
+    private int ioThreads;
+    
+    /**
+     * @parameter default-value=16
+     */
+    private int queueSize;
+    
+    /**
+     * @parameter
+     */
+    private boolean byteReport;
+    
+    /**
+     * @parameter default-value=20
+     */
+    private int byteReportTop;
+    
+    /**
+     * Function bodies of at least this many bytes are compiled on their first call.
+     * Every call keeps going through the original function, which forwards it to the
+     * compiled one, so that references to the original keep working.
+     * 
+     * @parameter default-value=0
+     */
+    private int lazyThreshold;
+    
+    /**
+     * @parameter
+     */
+    private List<String> lazyFiles;
+
+    /**
+     * @parameter
+     */
+    private List<String> includes;
+    
+    /**
+     * @parameter
+     */
+    private List<String> excludes;
+    
+    /**
+     * @parameter
+     */
+    private File hotProfile;
+    
+    /**
+     * @parameter
+     */
+    private boolean instrument;
+    
+    /**
+     * @parameter default-value=0
+     */
+    private int functionThreshold;
+    
+    /**
+     * @parameter default-value=0
+     */
+    private int sketchThreshold;
+    
+    /**
+     * @parameter
+     */
+    private List<Profile> profiles;
 
     public void execute() throws MojoExecutionException {
         if (srcdir == null) throw new MojoExecutionException("srcdir must be specified");
-        if (destdir == null) throw new MojoExecutionException("destdir must be specified");
         if (namemap == null) throw new MojoExecutionException("namemap must be specified");
-        float beforeTotal = 0;
-        float afterTotal = 0;
-        float compressTotal = 0;
-        
-        List<File> lst = new ArrayList<File>();
+        Build build = new Build();
+        build.setSrcdir(srcdir);
+        build.setDestdir(destdir);
+        build.setNamemap(namemap);
+        build.setVerify(verify);
+        build.setCompress(compress);
+        build.setCompactLiterals(compactLiterals);
+        build.setScoped(scoped);
+        build.setAliasGlobals(aliasGlobals);
+        build.setPoolNumbers(poolNumbers);
+        build.setAliasThreshold(aliasThreshold);
+        build.setParallelThreshold(parallelThreshold);
+        build.setThreads(threads);
+        build.setIoThreads(ioThreads);
+        build.setQueueSize(queueSize);
+        build.setByteReport(byteReport);
+        build.setByteReportTop(byteReportTop);
+        build.setLazyThreshold(lazyThreshold);
+        build.setLazyFiles(lazyFiles);
+        build.setIncludes(includes);
+        build.setExcludes(excludes);
+        build.setHotProfile(hotProfile);
+        build.setInstrument(instrument);
+        build.setFunctionThreshold(functionThreshold);
+        build.setSketchThreshold(sketchThreshold);
+        build.setProfiles(profiles);
         
-        try {
-        
-            for (File f : srcdir.listFiles()) {
-                if (f.isFile() && f.getName().endsWith(".js")) {
-                    lst.add(f);
-                }
-            }
-            
-            
-            log("Processing " + lst.size() + " file(s) collectively");
-            log("Source directory is " + srcdir.getCanonicalPath());
-            log("Destination directory is " + destdir.getCanonicalPath());
-            if (compress) log("Compression is turned on");
-            
-          //Compile and obfuscate the files
-            Optimizer jso = new Optimizer();
-            log("Anaylizing name patterns...");
-            Context context = Context.enter();
-            
-            for (File f : lst) {
-                Script script = context.compileReader(new InputStreamReader(new FileInputStream(f)), f.getCanonicalPath(), 1, null);
-                jso.analyzeNames(script);
-            }
-            
-            byte[] nmAry = jso.getNameMapScript().getBytes();
-            log("Generated name map of size " + nmAry.length + " bytes");
-            afterTotal += nmAry.length;
-            File fNameMap = new File(destdir, getDestPath(new File(srcdir, namemap)));
-            ByteArrayOutputStream baosNameMap = new ByteArrayOutputStream();
-            OutputStream osNameMap = baosNameMap;
-            if (compress) osNameMap = new GZIPOutputStream(osNameMap);
-            osNameMap.write(nmAry);
-            
-            log("Generating optimized scripts...");
-            
-            for (File f : lst) {
-                InputStreamReader isr = new InputStreamReader(new FileInputStream(f));
-                Script script = context.compileReader(isr, f.getCanonicalPath(), 1, null);
-                byte[] ary = jso.generate(script).getBytes();
-                isr.close();
-                
-                String destPath = getDestPath(f);
-                File destFile = new File(destdir, destPath);
-                
-                float before = (float)f.length();
-                beforeTotal += before;
-                afterTotal += ary.length;
-                log("Optimized file '" + destPath + "' from " + (int)before + " to " + ary.length + " bytes, " + ((10000 - Math.round((ary.length / before) * 10000)) / 100) + "% reduction");
-                
-                if (destFile.equals(fNameMap)) {
-                    log("Attaching name map to beginning of '" + destPath + "'");
-                    osNameMap.write(ary);
-                    //fNameMap = null;
-                } else {
-                    destFile.mkdirs();
-
-                    if (destFile.exists()) {
-                        destFile.delete();
-                        destFile = new File(destFile.getAbsolutePath());
-                        log("destFile=" + destFile.getCanonicalPath() + ",exists=" + destFile.exists());
-                    }
-                    
-                    OutputStream fos = new FileOutputStream(destFile);
-                    if (compress) fos = new GZIPOutputStream(fos);
-                    fos.write(ary);
-                    fos.close();
-                    if (compress) compressTotal += new File(destdir, f.getName()).length();
-                }
-                
-                if (verify) {
-                    log("Verifying file '" + destPath + "' for syntactic accuracy");
-                    context.compileReader(new InputStreamReader(new ByteArrayInputStream(ary)), destFile.getCanonicalPath(), 1, null);
-                }
+        build.setLog(new Build.Log() {
+            public void info(CharSequence message) {
+                getLog().info(message);
             }
             
-            Context.exit();
-            fNameMap.mkdirs();
-            
-            if (fNameMap.exists()) {
-                fNameMap.delete();
-                fNameMap = new File(fNameMap.getAbsolutePath());
-            }
-            
-            osNameMap.close();
-            baosNameMap.writeTo(osNameMap = new FileOutputStream(fNameMap));
-            osNameMap.close();
-            
-            if (compress) compressTotal += new File(fNameMap.getAbsolutePath()).length();
-
-            log("Optimization of all files: " + (int)beforeTotal + " to " + (int)afterTotal + " bytes, " + ((10000 - Math.round((afterTotal / beforeTotal) * 10000)) / 100) + "% reduction");
-            
-            if (compress) {
-                log("Compression of all files: " + (int)afterTotal + " to " + (int)compressTotal + " bytes, " + ((10000 - Math.round((compressTotal / afterTotal) * 10000)) / 100) + "% reduction");
-                log("Total reduction of all files: " + (int)beforeTotal + " to " + (int)compressTotal + " bytes, " + ((10000 - Math.round((compressTotal / beforeTotal) * 10000)) / 100) + "% reduction");
+            public void warn(CharSequence message) {
+                getLog().warn(message);
             }
+        });
         
+        try {
+            build.execute();
+        } catch (IllegalArgumentException e) {
+            throw new MojoExecutionException(e.getMessage());
         } catch (Exception e) {
             throw new MojoExecutionException("Exception executing mojo", e);
         }
-        
-    }
-    
-    private void log(CharSequence message) {
-        getLog().info(message);
-    }
-    
-    private String getDestPath(File f) throws IOException {
-        String fPath = f.getCanonicalPath();
-        String srcPath = srcdir.getCanonicalPath();
-        fPath = fPath.substring(fPath.indexOf(srcPath) + srcPath.length());
-        if (fPath.substring(0, 1).matches("[\\\\/:]")) fPath = fPath.substring(1);
-        return fPath;
     }
 }
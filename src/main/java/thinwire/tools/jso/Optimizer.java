@@ -31,10 +31,15 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Map.Entry;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -59,16 +64,118 @@ import org.mozilla.javascript.NativeFunction;
  *    'elem.style.backgrondColor' are reduced to direct hash level access such as
  *    elem[A][B], and the individual parts like 'style' and 'backgroundColor' are
  *    placed into variables in the global scope. The most frequently occurring
- *    object properties are given the shortest names.  
+ *    object properties are given the shortest names. A name is only aliased when
+ *    doing so saves more bytes than the alias threshold, after accounting for the
+ *    bracket access, the quoting and the name map declaration it costs, along with
+ *    its import into every script that uses it when the output is scoped.
+ * 
+ * When scoped output is turned on, the name map is emitted as 'var' locals of a
+ * function scope instead of globals. The name map script opens that scope and
+ * {@link #getNameMapScriptEnd()} closes it, so any script attached to the name map
+ * shares it. The name map script also exports its locals as one '$jsoMap' object,
+ * and every other script is wrapped by {@link #wrapScope(String)} in a scope of its
+ * own that takes the map as a parameter and imports just the names it uses, e.g.
+ * 'var A=M.A', instead of repeating their values. Top-level function declarations
+ * are exported to the global object explicitly at the end of their scope.
+ * 
+ * Scripts whose encoded source is at least the parallel threshold in length are
+ * generated in chunks on a fork-join pool. The encoded source is split after
+ * top-level statements, each chunk is decompiled by a child optimizer that starts
+ * from the scope state the sequential pass would have had at that point, and the
+ * results are joined in order, so the output is identical to a sequential run.
+ * 
+ * When global aliasing is turned on along with scoped output, global names such as
+ * 'document' and 'window' that are referenced often enough are bound to short
+ * locals in the name map scope as well, e.g. 'var A=this.document'. They are read
+ * as properties of the global object, so a global the browser does not define
+ * leaves its local undefined instead of throwing a ReferenceError. Any name that
+ * is declared, assigned, deleted or tested with 'typeof' anywhere in the sources,
+ * or assigned as a property of any object, e.g. 'window.X=' or 'this["X"]=', is
+ * left alone, since the local would only capture its value when the scope starts.
+ * 
+ * When number pooling is turned on along with scoped output, repeated numeric
+ * literals that pay for themselves are aliased the same way, with the number
+ * written unquoted in the name map. Numbers in 'case' labels are never aliased,
+ * so that a switch over constants is left as it is.
+ * 
+ * When literal compaction is turned on, numbers are written in their shortest
+ * equivalent form ('1e6', '.5', '0xffffffffffff') and strings use whichever quote
+ * character needs fewer escapes.
+ * 
+ * When a lazy threshold is set, functions whose body is at least that many bytes
+ * are emitted with their body as a string literal that is compiled with 'eval' on
+ * the first call, so browsers do not have to parse and compile handlers that
+ * never run. The compiled function is cached in a variable next to the original
+ * one, which stays in place so that its identity and prototype are unchanged.
+ * Every call, not just the first, goes through the original, which forwards to the
+ * compiled function with 'apply'. References to the original are not rebound to
+ * the compiled function, since code may hold on to it as a constructor, an event
+ * handler or a key. Since that forwarding costs every call, functions in the hot
+ * profile are never compiled lazily, and neither are functions in strict mode
+ * code, which is left as it is written.
+ * 
+ * When a {@link ByteReport} is set, generate attributes every byte it emits to the
+ * kind of token that produced it. The bytes of a lazily compiled body, including
+ * the stub around it, are attributed to the lazy category instead of the tokens
+ * of the body, so they are counted once.
+ * 
+ * Aliasing 'elem.style' to 'elem[A]' trades a property access the browser caches
+ * for a keyed lookup, which costs time in tight loops. A hot profile lists the
+ * functions where that matters and the properties to leave alone there. Those
+ * properties keep dot access inside hot functions and are neither counted nor
+ * aliased there, but are aliased everywhere else. With no properties listed every
+ * dotted property of a hot function is kept, with no functions listed the listed
+ * properties are kept everywhere. An instrumented build counts the calls of every
+ * function so that the profile can be recorded from a real session with
+ * '$jsoHotProfile()'. Functions are listed as '<name>@<hash>', their own name or
+ * the one they are assigned to along with a hash of their encoded source, so a
+ * profile keeps matching after edits elsewhere in the sources. Editing a function,
+ * or one nested in it, changes its key, and keys that no longer match anything
+ * are reported by {@link #getUnmatchedHotFunctions()}.
+ * 
+ * When a function threshold is set, function expressions whose encoded source is
+ * at least that long and that occur more than once across the scripts are defined
+ * once in the name map and every occurrence is replaced with a reference to it. In
+ * scoped output the other scripts' scopes import the definitions like any other
+ * name. A function is only shared if none of the names it uses from
+ * outside are declared as locals anywhere, since it would no longer close over
+ * them, and nothing is shared if the sources use 'with'. Every occurrence then
+ * evaluates to the same function object, so it should not be turned on for code
+ * that sets properties on function expressions or compares them. Functions that
+ * are called with 'new', or that are assigned to a name that is called with 'new'
+ * or has its 'prototype' accessed anywhere, are never shared, since each of them
+ * must construct objects of its own type. Repeated functions are found by hashes
+ * of their encoded source, which is only copied once it repeats. The names in a
+ * shared function are counted once for the name map, since its body is only
+ * generated once.
+ * 
+ * For very large sources a sketch threshold bounds the memory the analysis needs.
+ * Names and literals at least that long, which are mostly unique string literals,
+ * are first counted in a fixed size count-min sketch. Once the sketch reports a
+ * repeat, which it may also do when other keys share its counters, a 64-bit
+ * fingerprint of the key is kept with the occurrence, and the key itself is only
+ * kept once a later occurrence matches the fingerprint. Its count then starts from
+ * the occurrences the fingerprint confirmed, so it is one short, and a key that
+ * occurs only twice is never aliased in this mode. The scripts must be analyzed in
+ * the same order every time for the results to be the same.
  */
 public final class Optimizer {        
     private static final int FUNCTION_END = Token.LAST_TOKEN + 1;
+    //Function types that follow a FUNCTION token, the values of Rhino's FunctionNode constants, which later Rhino versions moved to another package
+    private static final int FUNCTION_STATEMENT = 1;
+    private static final int FUNCTION_EXPRESSION = 2;
+    private static final int USAGE_DOT = 0;
+    private static final int USAGE_QUOTED = 1;
+    private static final int USAGE_BARE = 2;
+    private static final int USAGE_FILES = 3;
+    private static final int USAGE_SCRIPT = 4;
     private static final char[] VALID_NAME_CHARS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ_$0123456789".toCharArray();
     private static final Pattern REGEX_VALID_NAME = Pattern.compile("[a-zA-Z_$][a-zA-Z0-9_$]*");
     private static final Pattern REGEX_DOUBLE_SLASH = Pattern.compile("\\\\");
     private static final Pattern REGEX_DOUBLE_QUOTE = Pattern.compile("\"");    
     private static final Pattern REGEX_CRLF = Pattern.compile("\\r?\\n");
     private static final Pattern REGEX_UNICODE = Pattern.compile("([\u0000-\u001f]|[\u007f-\uffff])");
+    private static final String[] UNALIASED_GLOBALS = {"arguments", "eval"};
     private static final String[] RESERVED_NAMES = {
         "this","function","new","delete","if",
         "else","for","in","with","while","do","try","catch","finally","throw","switch",
@@ -90,17 +197,306 @@ public final class Optimizer {
         int stmtCnt;
     }
     
+    private static class Candidate {
+        String value;
+        int count;
+        boolean literal;
+    }
+    
+    private static class FunctionScope {
+        Set<String> declared = new HashSet<String>();
+        Set<String> used = new HashSet<String>();
+    }
+    
+    //A function expression that occurs more than once, found by the hashes of its encoded source
+    private static class FunctionSpan {
+        long check;
+        int length;
+        String scriptName;
+        int offset;
+        String text;
+        int count;
+        int[] usage = new int[USAGE_SCRIPT + 1];
+        Set<String> free;
+        Set<String> names = new HashSet<String>();
+        boolean hot;
+        boolean strict;
+        boolean constructed;
+        FunctionSpan next;
+    }
+    
+    private static class Chunk {
+        int start;
+        int end;
+        ScopeState scopeState;
+        int scopeParen;
+        int currentToken;
+    }
+    
+    private static class FunctionInfo {
+        int start;
+        int bodyStart = -1;
+        int offset;
+        boolean hot;
+        boolean strict;
+        String key;
+        long[] report;
+    }
+    
+    //The functions of an encoded source in order of their offsets, along with their names and two hashes of their spans.
+    //The hashes come from a single running hash over the source, so nested functions are not scanned again. The first
+    //is modulo 2^64 and names the function in a hot profile, the second is modulo the prime 2^61-1 and tells apart the
+    //spans the first cannot.
+    private static class FunctionIndex {
+        private static final long HASH_BASE = 0x100000001b3L;
+        private static final long CHECK_BASE = 0x5bd1e995L;
+        private static final long CHECK_PRIME = (1L << 61) - 1;
+        private int size;
+        private int[] starts = new int[16];
+        private int[] ends = new int[16];
+        private String[] names = new String[16];
+        private long[] hashes = new long[16];
+        private long[] checks = new long[16];
+        
+        FunctionIndex(String source) {
+            int[] open = new int[16];
+            long[] openHashes = new long[16];
+            long[] openChecks = new long[16];
+            int depth = 0;
+            int nameStart = -1;
+            int nameEnd = -1;
+            long hash = 0;
+            long check = 0;
+            int hashed = 0;
+            int i = 0;
+            
+            while (i < source.length()) {
+                switch (source.charAt(i)) {
+                case Token.NAME:
+                case Token.STRING:
+                    nameStart = i;
+                    nameEnd = i = skipString(source, i + 1);
+                    continue;
+                    
+                case Token.REGEXP:
+                    i = skipString(source, i + 1);
+                    continue;
+                    
+                case Token.NUMBER:
+                    i = skipNumber(source, i + 1);
+                    continue;
+                    
+                case Token.FUNCTION:
+                    for (; hashed < i; hashed++) {
+                        hash = hash * HASH_BASE + source.charAt(hashed);
+                        check = mod(multiply(check, CHECK_BASE) + source.charAt(hashed));
+                    }
+                    
+                    if (size == starts.length) grow();
+                    
+                    if (depth == open.length) {
+                        open = Arrays.copyOf(open, depth * 2);
+                        openHashes = Arrays.copyOf(openHashes, depth * 2);
+                        openChecks = Arrays.copyOf(openChecks, depth * 2);
+                    }
+                    
+                    starts[size] = i;
+                    
+                    //A function is named by its own name, or else by the name or property it is assigned to
+                    if (i + 2 < source.length() && source.charAt(i + 2) == Token.NAME) {
+                        names[size] = getString(source, i + 3);
+                    } else if (i > 0 && nameEnd == i - 1 && (source.charAt(i - 1) == Token.ASSIGN || source.charAt(i - 1) == Token.OBJECTLIT)) {
+                        names[size] = getString(source, nameStart + 1);
+                    } else {
+                        names[size] = "";
+                    }
+                    
+                    if (!REGEX_VALID_NAME.matcher(names[size]).matches()) names[size] = "";
+                    open[depth] = size++;
+                    openHashes[depth] = hash;
+                    openChecks[depth++] = check;
+                    i += 2;
+                    continue;
+                    
+                case FUNCTION_END:
+                    if (depth == 0) break;
+                    
+                    for (; hashed <= i; hashed++) {
+                        hash = hash * HASH_BASE + source.charAt(hashed);
+                        check = mod(multiply(check, CHECK_BASE) + source.charAt(hashed));
+                    }
+                    
+                    int index = open[--depth];
+                    int length = i + 1 - starts[index];
+                    ends[index] = i + 1;
+                    hashes[index] = hash - openHashes[depth] * power(HASH_BASE, length);
+                    checks[index] = mod(check + CHECK_PRIME - multiply(openChecks[depth], powerMod(CHECK_BASE, length)));
+                    break;
+                }
+                
+                ++i;
+            }
+        }
+        
+        private void grow() {
+            starts = Arrays.copyOf(starts, size * 2);
+            ends = Arrays.copyOf(ends, size * 2);
+            names = Arrays.copyOf(names, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+            checks = Arrays.copyOf(checks, size * 2);
+        }
+        
+        int size() {
+            return size;
+        }
+        
+        //Index of the function starting at offset, negative if no function starts there
+        int find(int offset) {
+            return Arrays.binarySearch(starts, 0, size, offset);
+        }
+        
+        int getStart(int index) {
+            return starts[index];
+        }
+        
+        int getEnd(int index) {
+            return ends[index];
+        }
+        
+        String getName(int index) {
+            return names[index];
+        }
+        
+        long getHash(int index) {
+            return hashes[index];
+        }
+        
+        long getCheck(int index) {
+            return checks[index];
+        }
+        
+        //Identifies the function starting at offset as '<name>@<hash>', null if no function starts there
+        String getKey(int offset) {
+            int index = find(offset);
+            if (index < 0) return null;
+            long hash = hashes[index];
+            return names[index] + "@" + Integer.toHexString((int)(hash ^ (hash >>> 32)));
+        }
+        
+        private static long power(long base, int exponent) {
+            long result = 1;
+            
+            for (; exponent > 0; exponent >>= 1) {
+                if ((exponent & 1) != 0) result *= base;
+                base *= base;
+            }
+            
+            return result;
+        }
+        
+        private static long powerMod(long base, int exponent) {
+            long result = 1;
+            
+            for (; exponent > 0; exponent >>= 1) {
+                if ((exponent & 1) != 0) result = multiply(result, base);
+                base = multiply(base, base);
+            }
+            
+            return result;
+        }
+        
+        //Product modulo 2^61-1 of two values below it, split into 31 and 30 bit halves so no partial product overflows
+        private static long multiply(long a, long b) {
+            long aHigh = a >>> 31, aLow = a & 0x7fffffffL;
+            long bHigh = b >>> 31, bLow = b & 0x7fffffffL;
+            long middle = aLow * bHigh + aHigh * bLow;
+            return mod((aHigh * bHigh << 1) + (middle >>> 30) + ((middle & 0x3fffffffL) << 31) + aLow * bLow);
+        }
+        
+        private static long mod(long value) {
+            value = (value & CHECK_PRIME) + (value >>> 61);
+            value = (value & CHECK_PRIME) + (value >>> 61);
+            return value >= CHECK_PRIME ? value - CHECK_PRIME : value;
+        }
+    }
+    
+    private static final int MIN_CHUNK_LENGTH = 8192;
+    //Stands in for the name of a shared function, which is only named after the other names are aliased
+    private static final String ESTIMATED_NAME = "AB";
+    private static final String LAZY_VARIABLE = "$jso";
+    private static final String MAP_GLOBAL = "$jsoMap";
+    private static final int MIN_SKETCH_LENGTH = 8;
+    private static final int SKETCH_WIDTH = 1 << 20;
+    private static final String HOT_COUNTER = "$jsoCount";
+    private static final String HOT_RUNTIME = "var $jsoHot={}\nfunction " + HOT_COUNTER + "(k){$jsoHot[k]=($jsoHot[k]||0)+1}\n"
+        + "function $jsoHotProfile(n){var s=[],k\nfor(k in $jsoHot)if($jsoHot[k]>=(n||1))s.push(\"function \"+k)\nreturn s.join(\"\\n\")}\n";
+    
     private int nameNum;
     private List<BlockInfo> blockStack;
     private Set<String> usedNameMap;
     private Map<String, String> varMap;
+    private Map<String, int[]> usageMap;
+    private Map<String, String> literalMap;
+    private Map<String, int[]> literalUsageMap;
+    private int scriptNum;
+    private Set<String> excludedGlobals;
+    private boolean aliasGlobals;
+    private boolean poolNumbers;
+    private Map<String, Integer> excludedNames;
+    private boolean aliasNames;
+    private int aliasThreshold;
+    private int parallelThreshold;
+    private int threads;
+    private ByteReport byteReport;
+    private int lazyThreshold;
+    private boolean compactLiterals;
+    private List<FunctionInfo> functionStack;
+    private Set<String> hotFunctions;
+    private Set<String> hotProperties;
+    private Set<String> matchedHotFunctions;
+    private FunctionIndex functionIndex;
+    private int hotDepth;
+    private boolean instrument;
+    private String scriptName;
+    private int functionThreshold;
+    private Map<Long, FunctionSpan> functionSpans;
+    private Set<String> prototypeOwners;
+    private Set<String> newTargets;
+    private String lastName;
+    private boolean rootHot;
+    private boolean scriptStrict;
+    private Map<String, int[]> sharedUsage;
+    private Set<String> localNames;
+    private Set<String> topLevelNames;
+    private boolean withSeen;
+    private List<FunctionScope> scopeStack;
+    private Map<FunctionSpan, String> functionNames;
+    private Map<String, String> functionDefs;
+    private Set<String> scopeFunctions;
+    private int functionRoot;
+    private long functionBytes;
+    private long functionCost;
+    private int sketchThreshold;
+    private CountMinSketch sketch;
+    private Map<Long, int[]> sketchRepeats;
+    private boolean nameReplaced;
     private Set<String> constSet;
     private ScopeState scopeState;
     private int scopeParen;
     private String scopeQualifier;    
     private boolean analyzeNames;
+    private boolean scoped;
+    private boolean exportPending;
+    private Set<String> scopeNames;
+    private Set<String> scopeLiterals;
+    private List<String> scopeExports;
+    private String mapName;
     private int priorToken;
     private int currentToken;
+    private int nesting;
+    private List<Integer> varNesting;
+    private boolean catchPending;
+    private int caseLabel;
     
     public Optimizer() {
     	this(new HashMap<String, String>());
@@ -110,7 +506,30 @@ public final class Optimizer {
         blockStack = new ArrayList<BlockInfo>();
         usedNameMap = new HashSet<String>();
         varMap = nameMap;
+        usageMap = new HashMap<String, int[]>();
+        literalMap = new HashMap<String, String>();
+        literalUsageMap = new HashMap<String, int[]>();
+        excludedGlobals = new HashSet<String>();
+        excludedNames = new LinkedHashMap<String, Integer>();
+        varNesting = new ArrayList<Integer>();
+        functionStack = new ArrayList<FunctionInfo>();
+        matchedHotFunctions = new HashSet<String>();
         constSet = new HashSet<String>();        
+        scopeNames = new HashSet<String>();
+        scopeLiterals = new HashSet<String>();
+        scopeExports = new ArrayList<String>();
+        functionSpans = new HashMap<Long, FunctionSpan>();
+        prototypeOwners = new HashSet<String>();
+        newTargets = new HashSet<String>();
+        sharedUsage = new HashMap<String, int[]>();
+        sketchRepeats = new HashMap<Long, int[]>();
+        localNames = new HashSet<String>();
+        topLevelNames = new HashSet<String>();
+        scopeStack = new ArrayList<FunctionScope>();
+        functionNames = new HashMap<FunctionSpan, String>();
+        functionDefs = new LinkedHashMap<String, String>();
+        scopeFunctions = new HashSet<String>();
+        functionRoot = -1;
         constSet.add("true");
         constSet.add("false");
         constSet.add("null");
@@ -130,37 +549,365 @@ public final class Optimizer {
         constSet.add("parseInt");
         constSet.add("isFinite");
         constSet.add("isNaN");
+        aliasNames = true;
+        threads = Runtime.getRuntime().availableProcessors();
         reset();
     }
     
+    //Copy of the names analyzed so far, so outputs with different settings can share one analysis pass.
+    //The analysis must not be continued once it has been derived from.
+    public Optimizer derive() {
+        Optimizer o = new Optimizer();
+        o.usedNameMap = usedNameMap;
+        o.varMap.putAll(varMap);
+        o.usageMap = usageMap;
+        o.literalMap.putAll(literalMap);
+        o.literalUsageMap = literalUsageMap;
+        o.excludedGlobals = excludedGlobals;
+        o.excludedNames.putAll(excludedNames);
+        o.nameNum = nameNum;
+        o.analyzeNames = analyzeNames;
+        o.copySettings(this);
+        o.matchedHotFunctions = matchedHotFunctions;
+        o.functionSpans = functionSpans;
+        o.prototypeOwners = prototypeOwners;
+        o.newTargets = newTargets;
+        o.localNames = localNames;
+        o.topLevelNames = topLevelNames;
+        o.withSeen = withSeen;
+        o.sketch = sketch;
+        return o;
+    }
+    
+    //Everything set through the setters but the byte report, which is never shared
+    private void copySettings(Optimizer parent) {
+        aliasNames = parent.aliasNames;
+        aliasThreshold = parent.aliasThreshold;
+        aliasGlobals = parent.aliasGlobals;
+        poolNumbers = parent.poolNumbers;
+        parallelThreshold = parent.parallelThreshold;
+        threads = parent.threads;
+        lazyThreshold = parent.lazyThreshold;
+        compactLiterals = parent.compactLiterals;
+        scoped = parent.scoped;
+        hotFunctions = parent.hotFunctions;
+        hotProperties = parent.hotProperties;
+        instrument = parent.instrument;
+        functionThreshold = parent.functionThreshold;
+        sketchThreshold = parent.sketchThreshold;
+    }
+    
+    //Child used to generate one chunk of a script, sharing the parent's name map
+    private Optimizer(Optimizer parent, Chunk chunk) {
+        blockStack = new ArrayList<BlockInfo>();
+        newBlock(-1);
+        usedNameMap = parent.usedNameMap;
+        varMap = parent.varMap;
+        usageMap = parent.usageMap;
+        literalMap = parent.literalMap;
+        literalUsageMap = parent.literalUsageMap;
+        excludedGlobals = parent.excludedGlobals;
+        excludedNames = parent.excludedNames;
+        constSet = parent.constSet;
+        varNesting = new ArrayList<Integer>();
+        functionStack = new ArrayList<FunctionInfo>();
+        scopeNames = new HashSet<String>();
+        scopeLiterals = new HashSet<String>();
+        scopeExports = new ArrayList<String>();
+        copySettings(parent);
+        matchedHotFunctions = parent.matchedHotFunctions;
+        functionIndex = parent.functionIndex;
+        scriptName = parent.scriptName;
+        functionSpans = parent.functionSpans;
+        prototypeOwners = parent.prototypeOwners;
+        newTargets = parent.newTargets;
+        functionNames = parent.functionNames;
+        functionDefs = parent.functionDefs;
+        scopeFunctions = new HashSet<String>();
+        scopeStack = new ArrayList<FunctionScope>();
+        functionRoot = -1;
+        if (parent.byteReport != null) byteReport = new ByteReport();
+        scopeState = chunk.scopeState;
+        scopeParen = chunk.scopeParen;
+        scopeQualifier = parent.scopeQualifier;
+        scriptStrict = parent.scriptStrict;
+        currentToken = chunk.currentToken;
+        caseLabel = -1;
+    }
+    
     public void reset() {
         nameNum = 0;
         blockStack.clear();
         newBlock(-1);
         usedNameMap.clear();
         varMap.clear();
+        usageMap.clear();
+        literalMap.clear();
+        literalUsageMap.clear();
+        scriptNum = 0;
+        excludedGlobals.clear();
+        excludedNames.clear();
         scopeState = ScopeState.NONE;
         scopeParen = 0;
         scopeQualifier = "";
+        hotDepth = 0;
         priorToken = 0;
+        exportPending = false;
+        nesting = 0;
+        varNesting.clear();
+        functionStack.clear();
+        matchedHotFunctions.clear();
+        catchPending = false;
+        caseLabel = -1;
+        scopeNames.clear();
+        scopeLiterals.clear();
+        scopeExports.clear();
+        functionSpans.clear();
+        prototypeOwners.clear();
+        newTargets.clear();
+        sharedUsage.clear();
+        lastName = null;
+        localNames.clear();
+        topLevelNames.clear();
+        withSeen = false;
+        scopeStack.clear();
+        functionNames.clear();
+        functionDefs.clear();
+        scopeFunctions.clear();
+        functionBytes = 0;
+        functionCost = 0;
+        if (sketch != null) sketch.clear();
+        sketchRepeats.clear();
+    }
+    
+    public boolean isAliasNames() {
+        return aliasNames;
+    }
+    
+    //Turning this off leaves every name at full length, e.g. for a debuggable build
+    public void setAliasNames(boolean aliasNames) {
+        this.aliasNames = aliasNames;
+    }
+    
+    public int getAliasThreshold() {
+        return aliasThreshold;
+    }
+    
+    //Names are only aliased when the net bytes saved exceed this threshold
+    public void setAliasThreshold(int aliasThreshold) {
+        this.aliasThreshold = aliasThreshold;
+    }
+    
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+    
+    //Scripts with an encoded source at least this long are generated in parallel, 0 turns it off
+    public void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+    
+    public int getThreads() {
+        return threads;
+    }
+    
+    public void setThreads(int threads) {
+        if (threads < 1) throw new IllegalArgumentException("threads < 1");
+        this.threads = threads;
+    }
+    
+    public ByteReport getByteReport() {
+        return byteReport;
+    }
+    
+    //Bytes emitted by generate are attributed to this report, null turns it off
+    public void setByteReport(ByteReport byteReport) {
+        this.byteReport = byteReport;
+    }
+    
+    public boolean isAliasGlobals() {
+        return aliasGlobals;
+    }
+    
+    //Frequently referenced global names are bound to locals of the enclosing scope, only applies to scoped output
+    public void setAliasGlobals(boolean aliasGlobals) {
+        this.aliasGlobals = aliasGlobals;
+    }
+    
+    public boolean isPoolNumbers() {
+        return poolNumbers;
+    }
+    
+    //Repeated numeric literals are bound to locals of the enclosing scope, only applies to scoped output
+    public void setPoolNumbers(boolean poolNumbers) {
+        this.poolNumbers = poolNumbers;
+    }
+    
+    public int getLazyThreshold() {
+        return lazyThreshold;
+    }
+    
+    //Function bodies of at least this many bytes are compiled on their first call, 0 turns it off.
+    //Calls keep going through the original function, which forwards them to the compiled one.
+    public void setLazyThreshold(int lazyThreshold) {
+        this.lazyThreshold = lazyThreshold;
+    }
+    
+    public boolean isCompactLiterals() {
+        return compactLiterals;
+    }
+    
+    //Numbers and strings are written in their shortest equivalent form
+    public void setCompactLiterals(boolean compactLiterals) {
+        this.compactLiterals = compactLiterals;
+    }
+    
+    public boolean isScoped() {
+        return scoped;
+    }
+    
+    public void setScoped(boolean scoped) {
+        this.scoped = scoped;
+    }
+    
+    public Set<String> getHotFunctions() {
+        return hotFunctions;
+    }
+    
+    public Set<String> getHotProperties() {
+        return hotProperties;
+    }
+    
+    //Functions are named '<name>@<hash>' as in an instrumented build, must be set before analyzing
+    public void setHotProfile(Set<String> hotFunctions, Set<String> hotProperties) {
+        this.hotFunctions = hotFunctions;
+        this.hotProperties = hotProperties;
+    }
+    
+    //Functions of the hot profile that no analyzed script contains, e.g. because they were edited since it was recorded
+    public Set<String> getUnmatchedHotFunctions() {
+        Set<String> unmatched = new TreeSet<String>();
+        if (hotFunctions == null) return unmatched;
+        unmatched.addAll(hotFunctions);
+        unmatched.removeAll(matchedHotFunctions);
+        return unmatched;
+    }
+    
+    public boolean isInstrument() {
+        return instrument;
+    }
+    
+    //Counts the calls of every function at runtime, for recording a hot profile
+    public void setInstrument(boolean instrument) {
+        this.instrument = instrument;
+    }
+    
+    public int getFunctionThreshold() {
+        return functionThreshold;
+    }
+    
+    //Repeated function expressions at least this long in encoded form are defined once, must be set before analyzing
+    public void setFunctionThreshold(int functionThreshold) {
+        this.functionThreshold = functionThreshold;
+    }
+    
+    //Number of repeated functions defined once in the name map
+    public int getFunctionCount() {
+        return functionDefs.size();
+    }
+    
+    //Bytes saved so far by the shared function definitions, less the cost of defining them
+    public long getFunctionSavings() {
+        return functionBytes - functionCost;
+    }
+    
+    public int getSketchThreshold() {
+        return sketchThreshold;
+    }
+    
+    //Names and literals at least this long, but no less than 8, are only kept once seen three times, must be set before analyzing
+    public void setSketchThreshold(int sketchThreshold) {
+        this.sketchThreshold = sketchThreshold > 0 ? Math.max(MIN_SKETCH_LENGTH, sketchThreshold) : 0;
+        sketch = sketchThreshold > 0 ? new CountMinSketch(SKETCH_WIDTH) : null;
     }
     
     //First pass builds nameMap;
     public void analyzeNames(Script script) {
+        analyzeNames(script, null);
+    }
+    
+    //The name identifies the script's functions in a hot profile
+    public void analyzeNames(Script script, String name) {
         analyzeNames = true;
+        scriptName = name == null ? "" : name;
+        scriptNum++;
         decompile(script);        
     }
     
     //Second pass constructs name map and returns optimized code
     public String generate(Script script) {
+        return generate(script, null);
+    }
+    
+    public String generate(Script script, String name) {
+        scriptName = name == null ? "" : name;
+        
         if (analyzeNames) {
             analyzeNames = false;
             assignNames(varMap);
         }
         
+        scopeNames.clear();
+        scopeLiterals.clear();
+        scopeExports.clear();
+        scopeFunctions.clear();
         return decompile(script);
     }
     
+    //Wraps the most recently generated script in a scope of its own when scoped output is on
+    public String wrapScope(String code) {
+        if (!scoped) return code;
+        StringBuffer imports = new StringBuffer();
+        appendImports(imports);
+        StringBuffer sb = new StringBuffer();
+        sb.append("(function(").append(imports.length() == 0 ? "" : mapName).append("){");
+        sb.append(imports);
+        //The exports and the end of the scope start lines of their own
+        sb.append(code.endsWith("\n") ? code.substring(0, code.length() - 1) : code);
+        sb.append(getScopeExports());
+        sb.append(imports.length() == 0 ? getNameMapScriptEnd() : "\n}).call(this," + MAP_GLOBAL + ")\n");
+        return sb.toString();
+    }
+    
+    //Imports the names the most recently generated script uses from the map object the name map script exports
+    private void appendImports(StringBuffer sb) {
+        for (String value : scopeNames) appendImport(sb, varMap.get(value));
+        for (String value : scopeLiterals) appendImport(sb, literalMap.get(value));
+        
+        for (String name : scopeFunctions) {
+            int mark = sb.length();
+            appendImport(sb, name);
+            functionCost += sb.length() - mark;
+        }
+        
+        if (sb.length() > 0) sb.append('\n');
+    }
+    
+    private void appendImport(StringBuffer sb, String name) {
+        sb.append(sb.length() == 0 ? "var " : ",").append(name).append('=').append(mapName).append('.').append(name);
+    }
+    
+    //Exports the top-level functions declared by the most recently generated script
+    public String getScopeExports() {
+        StringBuffer sb = new StringBuffer();
+        for (String name : scopeExports) sb.append("\nthis.").append(name).append('=').append(name);
+        return sb.toString();
+    }
+    
+    public String getNameMapScriptEnd() {
+        return scoped ? "\n}).call(this)\n" : "";
+    }
+    
     public Map<String, String> getNameMap() {
         if (analyzeNames) {
             analyzeNames = false;
@@ -170,49 +917,370 @@ public final class Optimizer {
         return varMap;
     }
     
-    public String getNameMapScript() {
-        if (analyzeNames) {
-            analyzeNames = false;
-            assignNames(varMap);
-        }
-
-        StringBuffer sb = new StringBuffer();
+    //Repeated names that were not aliased, along with the net bytes aliasing them would have saved
+    public Map<String, Integer> getExcludedNames() {
+        if (analyzeNames) {
+            analyzeNames = false;
+            assignNames(varMap);
+        }
+
+        return excludedNames;
+    }
+    
+    public String getNameMapScript() {
+        if (analyzeNames) {
+            analyzeNames = false;
+            assignNames(varMap);
+        }
+
+        StringBuffer sb = new StringBuffer();
+        if (instrument) sb.append(HOT_RUNTIME);
+        if (scoped) sb.append("(function(){");
+        appendNameMap(sb);
+        return sb.toString();
+    }
+    
+    private void appendNameMap(StringBuffer sb) {
+        boolean first = true;
+        StringBuffer exports = new StringBuffer();
+        
+        for (Map.Entry<String, String> e : varMap.entrySet()) {
+            StringBuffer entry = new StringBuffer();
+            appendNameMapEntry(entry, e.getValue(), e.getKey());
+            appendEntry(sb, first, entry);
+            first = false;
+            appendExport(exports, e.getValue());
+        }
+        
+        for (Map.Entry<String, String> e : literalMap.entrySet()) {
+            StringBuffer entry = new StringBuffer();
+            appendLiteralEntry(entry, e.getValue(), e.getKey());
+            appendEntry(sb, first, entry);
+            first = false;
+            appendExport(exports, e.getValue());
+        }
+        
+        for (Map.Entry<String, String> e : functionDefs.entrySet()) {
+            appendEntry(sb, first, e.getKey() + '=' + e.getValue());
+            first = false;
+            appendExport(exports, e.getKey());
+        }
+        
+        if (scoped && !first) sb.append("\nthis.").append(MAP_GLOBAL).append("={").append(exports).append("}\n");
+    }
+    
+    private void appendEntry(StringBuffer sb, boolean first, CharSequence entry) {
+        if (scoped) sb.append(first ? "var " : ",\n");
+        sb.append(entry);
+        if (!scoped) sb.append('\n');
+    }
+    
+    private void appendExport(StringBuffer sb, String name) {
+        if (sb.length() > 0) sb.append(',');
+        sb.append(name).append(':').append(name);
+    }
+    
+    private void appendNameMapEntry(StringBuffer sb, String name, String value) {
+        sb.append(name).append('=');
+        sb.append(constSet.contains(value) ? value : quoteString(value));
+    }
+    
+    private void appendLiteralEntry(StringBuffer sb, String name, String value) {
+        sb.append(name).append('=');
+        if (!isNumber(value)) sb.append("this.");
+        sb.append(value);
+    }
+    
+    private void assignNames(Map<String, String> nameMap) {
+        if (!aliasNames) {
+            nameMap.clear();
+            literalMap.clear();
+            excludedNames.clear();
+            functionNames.clear();
+            functionDefs.clear();
+            return;
+        }
+        
+        //Scoped scripts take the exported name map as a parameter, it is used once for every name they import
+        mapName = scoped ? getNextName() : null;
+        List<FunctionSpan> shared = selectFunctions();
+        countSharedOnce(shared, nameMap);
+        List<Candidate> memberCount = new ArrayList<Candidate>(nameMap.size() + literalMap.size());
+        addCandidates(memberCount, nameMap, false);
+        addCandidates(memberCount, literalMap, true);
+        nameMap.clear();
+        literalMap.clear();
+        
+        Collections.sort(memberCount, new Comparator<Candidate>() {
+            public int compare(Candidate o1, Candidate o2) {
+                if (o1.count > o2.count) return -1;
+                else if (o1.count < o2.count) return 1;
+                else if (o1.literal != o2.literal) return o1.literal ? 1 : -1;
+                else return o1.value.compareTo(o2.value);
+            }
+        });
+        
+        excludedNames.clear();
+        
+        for (Candidate c : memberCount) {
+            if (c.count <= 1 || (c.literal && !isLiteralCandidate(c.value))) continue;
+            int priorNameNum = nameNum;
+            String name = getNextName();
+            int savings = c.literal ? getLiteralSavings(c.value, name, c.count) : getSavings(c.value, name, c.count);
+            
+            if (savings > aliasThreshold) {
+                (c.literal ? literalMap : nameMap).put(c.value, name);
+            } else {
+                //Give the name back so the next candidate can use it
+                nameNum = priorNameNum;
+                excludedNames.put(c.value, savings);
+            }
+        }
+        
+        defineFunctions(shared);
+    }
+    
+    //Picks the repeated functions to define once, outermost first. They are picked before any name is aliased, so that
+    //the names in them can be counted once instead of once for every occurrence, with an estimate of their own name.
+    private List<FunctionSpan> selectFunctions() {
+        functionNames.clear();
+        functionDefs.clear();
+        sharedUsage.clear();
+        List<FunctionSpan> selected = new ArrayList<FunctionSpan>();
+        if (functionThreshold <= 0 || functionSpans.isEmpty() || withSeen || instrument) return selected;
+        List<FunctionSpan> spans = new ArrayList<FunctionSpan>();
+        
+        for (FunctionSpan fs : functionSpans.values()) {
+            for (; fs != null; fs = fs.next) {
+                if (fs.text != null) spans.add(fs);
+            }
+        }
+        
+        Collections.sort(spans, new Comparator<FunctionSpan>() {
+            public int compare(FunctionSpan o1, FunctionSpan o2) {
+                if (o1.length != o2.length) return o2.length - o1.length;
+                if (!o1.scriptName.equals(o2.scriptName)) return o1.scriptName.compareTo(o2.scriptName);
+                return o1.offset - o2.offset;
+            }
+        });
+        
+        Map<FunctionSpan, Integer> counts = new HashMap<FunctionSpan, Integer>();
+        for (FunctionSpan fs : spans) counts.put(fs, fs.count);
+        
+        for (FunctionSpan fs : spans) {
+            int count = counts.get(fs);
+            if (count < 2 || !isClosureSafe(fs.free) || isConstructor(fs)) continue;
+            int cost = getEntryCost(ESTIMATED_NAME.length() + 1 + fs.length) + getScopeCost(ESTIMATED_NAME, fs.usage);
+            if (count * (fs.length - ESTIMATED_NAME.length()) - cost <= aliasThreshold) continue;
+            selected.add(fs);
+            //Named once the names are aliased, until then it only marks the function as shared
+            functionNames.put(fs, "");
+            
+            //The function's body is generated once, along with the functions nested in it
+            for (FunctionSpan nested : getNestedSpans(fs)) {
+                counts.put(nested, counts.get(nested) - (count - 1));
+            }
+        }
+        
+        return selected;
+    }
+    
+    //Takes the names and literals of the shared functions' bodies off the counts, but for the one copy in their definition
+    private void countSharedOnce(List<FunctionSpan> shared, Map<String, String> nameMap) {
+        for (FunctionSpan fs : shared) {
+            int copies = fs.count - 1;
+            Optimizer child = getSpanOptimizer(fs);
+            child.analyzeNames = true;
+            child.functionThreshold = 0;
+            child.varMap = new HashMap<String, String>();
+            child.usageMap = new HashMap<String, int[]>();
+            child.literalMap = new HashMap<String, String>();
+            child.literalUsageMap = new HashMap<String, int[]>();
+            child.usedNameMap = new HashSet<String>();
+            child.excludedGlobals = new HashSet<String>();
+            child.matchedHotFunctions = new HashSet<String>();
+            child.decompile(fs.text, 0, fs.length, new StringBuffer());
+            
+            for (Map.Entry<String, String> e : child.varMap.entrySet()) {
+                String value = e.getKey();
+                int own = Integer.parseInt(e.getValue());
+                String sCount = nameMap.get(value);
+                if (sCount == null) continue;
+                nameMap.put(value, String.valueOf(Math.max(1, Integer.parseInt(sCount) - copies * own)));
+                int[] usage = sharedUsage.get(value);
+                
+                if (usage == null) {
+                    int[] counted = usageMap.get(value);
+                    if (counted == null) continue;
+                    sharedUsage.put(value, usage = counted.clone());
+                }
+                
+                int[] ownUsage = child.usageMap.get(value);
+                for (int i = USAGE_DOT; i <= USAGE_BARE; i++) usage[i] = Math.max(0, usage[i] - copies * ownUsage[i]);
+            }
+            
+            for (Map.Entry<String, String> e : child.literalMap.entrySet()) {
+                String sCount = literalMap.get(e.getKey());
+                if (sCount == null) continue;
+                literalMap.put(e.getKey(), String.valueOf(Math.max(1, Integer.parseInt(sCount) - copies * Integer.parseInt(e.getValue()))));
+            }
+        }
+    }
+    
+    //Names the shared functions after the aliased names and generates their definitions
+    private void defineFunctions(List<FunctionSpan> shared) {
+        for (FunctionSpan fs : shared) functionNames.put(fs, getNextName());
+        
+        for (FunctionSpan fs : shared) {
+            StringBuffer sb = new StringBuffer();
+            getSpanOptimizer(fs).decompile(fs.text, 0, fs.length, sb);
+            String name = functionNames.get(fs);
+            functionDefs.put(name, sb.toString());
+            functionCost += getEntryCost(name.length() + 1 + sb.length()) + (scoped ? getExportCost(name) : 0);
+        }
+    }
+    
+    //Child that decompiles a shared function's source as it would be where it first occurs. Hot profile keys do not
+    //depend on where a function is, and the function itself is hot if any of its occurrences is.
+    private Optimizer getSpanOptimizer(FunctionSpan fs) {
+        Chunk chunk = new Chunk();
+        chunk.start = 0;
+        chunk.end = fs.length;
+        chunk.scopeState = ScopeState.NONE;
+        chunk.currentToken = Token.ASSIGN;
+        Optimizer child = new Optimizer(this, chunk);
+        child.scriptName = fs.scriptName;
+        child.functionRoot = 0;
+        child.rootHot = fs.hot;
+        child.scriptStrict = fs.strict;
+        child.byteReport = null;
+        child.functionIndex = new FunctionIndex(fs.text);
+        return child;
+    }
+    
+    //A function can only be defined elsewhere if the names it uses from outside resolve to the same globals there
+    private boolean isClosureSafe(Set<String> free) {
+        for (String name : free) {
+            if (name.equals("eval") || localNames.contains(name) || (scoped && topLevelNames.contains(name))) return false;
+        }
+        
+        return true;
+    }
+    
+    //Every occurrence of a constructor must create objects of its own type, with a prototype of its own
+    private boolean isConstructor(FunctionSpan fs) {
+        if (fs.constructed) return true;
+        
+        for (String name : fs.names) {
+            if (prototypeOwners.contains(name) || newTargets.contains(name)) return true;
+        }
+        
+        return false;
+    }
+    
+    //Recorded function expressions nested at any depth in the given one, once for each occurrence
+    private List<FunctionSpan> getNestedSpans(FunctionSpan fs) {
+        List<FunctionSpan> nested = new ArrayList<FunctionSpan>();
+        FunctionIndex index = new FunctionIndex(fs.text);
+        
+        for (int i = 1, cnt = index.size(); i < cnt; i++) {
+            FunctionSpan inner = getSpan(index.getHash(i), index.getCheck(i), index.getEnd(i) - index.getStart(i));
+            if (inner != null && inner.text != null) nested.add(inner);
+        }
+        
+        return nested;
+    }
+    
+    private FunctionSpan getSpan(long hash, long check, int length) {
+        FunctionSpan fs = functionSpans.get(hash);
+        while (fs != null && (fs.check != check || fs.length != length)) fs = fs.next;
+        return fs;
+    }
+    
+    //The shared function that the function expression at offset i of the source is an occurrence of, if any
+    private String getSharedFunction(String source, int i) {
+        int index = functionIndex.find(i);
+        if (index < 0) return null;
+        int length = functionIndex.getEnd(index) - i;
+        FunctionSpan fs = getSpan(functionIndex.getHash(index), functionIndex.getCheck(index), length);
+        if (fs == null || fs.text == null || !source.regionMatches(i, fs.text, 0, length)) return null;
+        return functionNames.get(fs);
+    }
+    
+    private static void addCandidates(List<Candidate> candidates, Map<String, String> counts, boolean literal) {
+        for (Map.Entry<String, String> e : counts.entrySet()) {
+            Candidate c = new Candidate();
+            c.value = e.getKey();
+            c.count = Integer.parseInt(e.getValue());
+            c.literal = literal;
+            candidates.add(c);
+        }
+    }
+    
+    private boolean isLiteralCandidate(String value) {
+        if (!scoped) return false;
+        if (isNumber(value)) return poolNumbers;
+        return aliasGlobals && !excludedGlobals.contains(value) && !Arrays.asList(UNALIASED_GLOBALS).contains(value);
+    }
+    
+    //Numbers are keyed by their compact form, which never starts like a name does
+    private static boolean isNumber(String value) {
+        char c = value.charAt(0);
+        return c == '.' || (c >= '0' && c <= '9');
+    }
+    
+    //Net bytes saved by replacing every use of a literal expression with name, less the cost of declaring it
+    private int getLiteralSavings(String value, String name, int count) {
+        boolean number = isNumber(value);
+        int length = number && !compactLiterals ? ScriptRuntime.numberToString(parseNumber(value), 10).length() : value.length();
+        StringBuffer entry = new StringBuffer();
+        appendLiteralEntry(entry, name, value);
+        return count * (length - name.length()) - getEntryCost(entry.length()) - getScopeCost(name, literalUsageMap.get(value));
+    }
+    
+    //Net bytes saved by replacing every use of value with name, less the cost of declaring it
+    private int getSavings(String value, String name, int count) {
+        int[] usage = sharedUsage.containsKey(value) ? sharedUsage.get(value) : usageMap.get(value);
         
-        for (Map.Entry<String, String> e : varMap.entrySet()) {
-            String name = e.getValue();
-            String value = e.getKey();
-            boolean asQuotedString = !constSet.contains(value);
-            sb.append(name).append('=');
-            if (asQuotedString) sb.append('"');
-            sb.append(ScriptRuntime.escapeString(value));
-            if (asQuotedString) sb.append('"');
-            sb.append('\n');
+        if (usage == null) {
+            usage = new int[USAGE_SCRIPT + 1];
+            usage[USAGE_DOT] = count;
         }
         
-        return sb.toString();
+        int length = value.length();
+        int nameLength = name.length();
+        int savings = usage[USAGE_DOT] * (length + 1 - (nameLength + 2))
+            + usage[USAGE_QUOTED] * (quoteString(value).length() - nameLength)
+            + usage[USAGE_BARE] * (length - nameLength);
+        StringBuffer entry = new StringBuffer();
+        appendNameMapEntry(entry, name, value);
+        return savings - getEntryCost(entry.length()) - getScopeCost(name, usage);
     }
     
-    private void assignNames(Map<String, String> nameMap) {
-        List<Map.Entry<String, String>> memberCount = new ArrayList<Map.Entry<String, String>>(nameMap.entrySet());
-        Collections.sort(memberCount, new Comparator<Map.Entry<String, String>>() {
-            public int compare(Entry<String, String> o1, Entry<String, String> o2) {
-                int i1 = Integer.parseInt(o1.getValue());
-                int i2 = Integer.parseInt(o2.getValue());
-                if (i1 > i2) return -1;
-                else if (i1 < i2) return 1;
-                else return 0;
-            }
-        });
-        
-        for (Map.Entry<String, String> e : memberCount) {
-            int count = Integer.parseInt(e.getValue());
-
-            if (count == 1) {
-                nameMap.remove(e.getKey());
-            } else {
-                nameMap.put(e.getKey(), getNextName());
-            }
-        }
+    //Bytes a name map entry of the given length takes along with its separator, as any entry but the first
+    private int getEntryCost(int length) {
+        StringBuffer sb = new StringBuffer();
+        appendEntry(sb, false, "");
+        return length + sb.length();
+    }
+    
+    //Scoped output also exports a name once as ',A:A' and imports it as ',A=M.A' in every script that uses it
+    private int getScopeCost(String name, int[] usage) {
+        if (!scoped) return 0;
+        int files = usage == null ? 1 : Math.max(1, usage[USAGE_FILES]);
+        StringBuffer sb = new StringBuffer();
+        appendImport(sb, name);
+        int mark = sb.length();
+        appendImport(sb, name);
+        return getExportCost(name) + files * (sb.length() - mark);
+    }
+    
+    private int getExportCost(String name) {
+        StringBuffer sb = new StringBuffer();
+        appendExport(sb, name);
+        int mark = sb.length();
+        appendExport(sb, name);
+        return sb.length() - mark;
     }
     
     String getChangedName(String name) {
@@ -235,11 +1303,186 @@ public final class Optimizer {
         int length = source.length();
         if (length == 0) { return ""; }
         int i = source.charAt(0) == Token.SCRIPT ? 1 : 0;
+        scriptStrict = isStrictDirective(source, i);
+        boolean indexed = (hotFunctions != null && !hotFunctions.isEmpty()) || (analyzeNames ? functionThreshold > 0 : instrument || !functionNames.isEmpty());
+        functionIndex = indexed ? new FunctionIndex(source) : null;
+        if (!analyzeNames && parallelThreshold > 0 && threads > 1 && length >= parallelThreshold) return decompileParallel(source, i);
+        StringBuffer result = new StringBuffer();
+        decompile(source, i, length, result);
+        return result.toString();
+    }
+    
+    private String decompileParallel(String source, int start) {
+        List<Chunk> chunks = splitStatements(source, start, Math.max(MIN_CHUNK_LENGTH, source.length() / (threads * 4)));
+        final List<Optimizer> children = new ArrayList<Optimizer>(chunks.size());
+        List<Callable<String>> tasks = new ArrayList<Callable<String>>(chunks.size());
+        
+        for (final Chunk chunk : chunks) {
+            final Optimizer child = new Optimizer(this, chunk);
+            final String src = source;
+            children.add(child);
+            
+            tasks.add(new Callable<String>() {
+                public String call() {
+                    StringBuffer result = new StringBuffer();
+                    child.decompile(src, chunk.start, chunk.end, result);
+                    return result.toString();
+                }
+            });
+        }
         
+        //Only scripts past the parallel threshold get here, so each has a pool of its own that is shut down after it
+        ForkJoinPool pool = new ForkJoinPool(threads);
         StringBuffer result = new StringBuffer();
+        
+        try {
+            for (Future<String> f : pool.invokeAll(tasks)) {
+                result.append(f.get());
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            throw new RuntimeException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            pool.shutdown();
+        }
+        
+        for (Optimizer child : children) {
+            scopeNames.addAll(child.scopeNames);
+            scopeLiterals.addAll(child.scopeLiterals);
+            scopeExports.addAll(child.scopeExports);
+            scopeFunctions.addAll(child.scopeFunctions);
+            functionBytes += child.functionBytes;
+            if (byteReport != null) byteReport.merge(child.byteReport);
+        }
+        
+        Optimizer last = children.get(children.size() - 1);
+        priorToken = last.priorToken;
+        currentToken = last.currentToken;
+        scopeState = last.scopeState;
+        scopeParen = last.scopeParen;
+        exportPending = last.exportPending;
+        nesting = last.nesting;
+        varNesting = last.varNesting;
+        catchPending = last.catchPending;
+        return result.toString();
+    }
+    
+    //Splits the encoded source after top-level statements, tracking the scope state decompile would have at each split
+    private List<Chunk> splitStatements(String source, int i, int chunkLength) {
+        int length = source.length();
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        List<Integer> functionTypes = new ArrayList<Integer>();
+        ScopeState state = scopeState;
+        int paren = scopeParen;
+        int token = currentToken;
+        int depth = 0;
+        Chunk chunk = new Chunk();
+        chunk.start = i;
+        chunk.scopeState = state;
+        chunk.scopeParen = paren;
+        chunk.currentToken = token;
+        
+        while (i < length) {
+            boolean boundary = false;
+            token = source.charAt(i);
+            
+            switch (token) {
+            case Token.NAME:
+            case Token.REGEXP:
+            case Token.STRING:
+                i = printSourceString(source, i + 1, false, null);
+                continue;
+                
+            case Token.NUMBER:
+                i = printSourceNumber(source, i + 1, null);
+                continue;
+                
+            case Token.FUNCTION:
+                state = ScopeState.START_FUNCTION;
+                functionTypes.add((int)source.charAt(++i));
+                break;
+                
+            case FUNCTION_END:
+                int type = functionTypes.remove(functionTypes.size() - 1);
+                boundary = depth == 0 && functionTypes.isEmpty() && type == FUNCTION_STATEMENT;
+                break;
+                
+            case Token.LC:
+                if (state == ScopeState.START_ARGS) state = ScopeState.NONE;
+                depth++;
+                break;
+                
+            case Token.LP:
+                if (state == ScopeState.START_FUNCTION) {
+                    state = ScopeState.START_ARGS;
+                } else if (state == ScopeState.START_FOR) {
+                    paren++;
+                }
+                
+                depth++;
+                break;
+                
+            case Token.RP:
+                if (state == ScopeState.START_FOR) {
+                    paren--;
+                    if (paren == 0) state = ScopeState.NONE;
+                }
+                
+                depth--;
+                break;
+                
+            case Token.LB:
+                depth++;
+                break;
+                
+            case Token.RC:
+            case Token.RB:
+                depth--;
+                break;
+                
+            case Token.FOR:
+                state = ScopeState.START_FOR;
+                break;
+                
+            case Token.SEMI:
+                boundary = depth == 0 && functionTypes.isEmpty() && state != ScopeState.START_FOR;
+                break;
+            }
+            
+            ++i;
+            
+            if (boundary && i - chunk.start >= chunkLength && i < length) {
+                chunk.end = i;
+                chunks.add(chunk);
+                chunk = new Chunk();
+                chunk.start = i;
+                chunk.scopeState = state;
+                chunk.scopeParen = paren;
+                chunk.currentToken = token;
+            }
+        }
+        
+        chunk.end = length;
+        chunks.add(chunk);
+        return chunks;
+    }
+    
+    private void decompile(String source, int i, int end, StringBuffer result) {
+        int length = source.length();
+        ByteReport report = analyzeNames ? null : byteReport;
+        int mark = result.length();
 
         synchronized (result) {
-            while (i < length) {
+            while (i < end) {
+                if (report != null && result.length() != mark) {
+                    report.add(getCategory(currentToken), result.length() - mark);
+                    mark = result.length();
+                }
+                
                 priorToken = currentToken;
                 currentToken = source.charAt(i);
                 switch(currentToken) {
@@ -274,7 +1517,44 @@ public final class Optimizer {
                     break;
     
                 case Token.FUNCTION:
+                    //Shared functions are replaced when generating, and left out when counting the names of the one they are nested in
+                    if (i != functionRoot && (!analyzeNames || functionRoot >= 0) && functionNames.size() > 0 && functionIndex != null && source.charAt(i + 1) == FUNCTION_EXPRESSION) {
+                        String name = getSharedFunction(source, i);
+                        
+                        if (name != null) {
+                            result.append(name);
+                            
+                            if (!analyzeNames) {
+                                functionBytes += functionDefs.get(name).length() - name.length();
+                                if (scoped) scopeFunctions.add(name);
+                            }
+                            
+                            currentToken = Token.NAME;
+                            i = functionIndex.getEnd(functionIndex.find(i));
+                            continue;
+                        }
+                    }
+                    
+                    if (analyzeNames && functionThreshold > 0) {
+                        FunctionScope scope = new FunctionScope();
+                        scope.declared.add("arguments");
+                        scopeStack.add(scope);
+                    }
+                    
+                    FunctionInfo info = new FunctionInfo();
+                    info.start = result.length();
+                    info.offset = i;
+                    info.key = functionIndex == null ? null : functionIndex.getKey(i);
+                    info.hot = i == functionRoot ? rootHot : info.key != null && hotFunctions != null && hotFunctions.contains(info.key);
+                    
+                    if (info.hot) {
+                        hotDepth++;
+                        if (analyzeNames) matchedHotFunctions.add(info.key);
+                    }
+                    
+                    functionStack.add(info);
                     result.append("function");                        
+                    exportPending = scoped && scopeQualifier.length() == 0 && source.charAt(i + 1) == FUNCTION_STATEMENT;
                     scopeState = ScopeState.START_FUNCTION;
                     scopeQualifier += ".anon_" + i;
                     ++i; // skip function type
@@ -282,6 +1562,18 @@ public final class Optimizer {
     
                 case FUNCTION_END:
                     scopeQualifier = scopeQualifier.substring(0, scopeQualifier.lastIndexOf('.'));
+                    FunctionInfo function = functionStack.remove(functionStack.size() - 1);
+                    if (function.hot) hotDepth--;
+                    if (analyzeNames && functionThreshold > 0) endFunctionScope(source, function, i + 1);
+                    
+                    if (lazyThreshold > 0 && !analyzeNames && function.bodyStart != -1 && !function.hot && !function.strict
+                            && lazyFunction(result, function.start, function.bodyStart, source.charAt(function.offset + 1) != FUNCTION_EXPRESSION) && report != null) {
+                        //The body was already attributed token by token, now it is all part of the string it is compiled from
+                        report.restore(function.report);
+                        report.add(ByteReport.Category.LAZY, result.length() - function.bodyStart);
+                        mark = result.length();
+                    }
+                    
                     break;
     
                 case Token.COMMA:
@@ -290,9 +1582,24 @@ public final class Optimizer {
     
                 case Token.LC:
                     result.append('{');
+                    nesting++;
                     
                     if (scopeState == ScopeState.START_ARGS) {
                         scopeState = ScopeState.NONE;
+                        
+                        if (functionStack.size() > 0) {
+                            FunctionInfo current = functionStack.get(functionStack.size() - 1);
+                            current.bodyStart = result.length();
+                            current.strict = (functionStack.size() > 1 ? functionStack.get(functionStack.size() - 2).strict : scriptStrict) || isStrictDirective(source, i + 1);
+                            
+                            if (report != null && lazyThreshold > 0) {
+                                report.add(getCategory(currentToken), result.length() - mark);
+                                mark = result.length();
+                                current.report = report.snapshot();
+                            }
+                            
+                            if (instrument && !analyzeNames && current.key != null) result.append(HOT_COUNTER).append("(\"").append(ScriptRuntime.escapeString(current.key)).append("\")\n");
+                        }
                     } else {
                         if (blockStack.size() - 1 >= 0) {
                             BlockInfo bi = blockStack.get(blockStack.size() - 1);
@@ -309,6 +1616,8 @@ public final class Optimizer {
                     break;
     
                 case Token.RC:
+                    closeNesting();
+                    
                     if (FUNCTION_END != getNext(source, length, i)) {
                         if (blockStack.size() - 1 >= 0) {
                             BlockInfo bi = blockStack.remove(blockStack.size() - 1);
@@ -336,6 +1645,7 @@ public final class Optimizer {
                     
                 case Token.LP:
                     result.append('(');
+                    nesting++;
                     
                     if (scopeState == ScopeState.START_FUNCTION) {
                         scopeState = ScopeState.START_ARGS;
@@ -347,6 +1657,7 @@ public final class Optimizer {
     
                 case Token.RP:                    
                     result.append(')');
+                    closeNesting();
                     
                     if (scopeState == ScopeState.START_FOR) {
                         scopeParen--;
@@ -357,10 +1668,12 @@ public final class Optimizer {
     
                 case Token.LB:
                     result.append('[');
+                    nesting++;
                     break;
     
                 case Token.RB:
                     result.append(']');
+                    closeNesting();
                     break;
     
                 case Token.EOL:
@@ -397,9 +1710,11 @@ public final class Optimizer {
     
                 case Token.IN:
                     result.append(" in ");
+                    endVar();
                     break;
     
                 case Token.WITH:
+                    if (analyzeNames) withSeen = true;
                     result.append("with");
                     newBlock(currentToken);
                     break;
@@ -421,6 +1736,7 @@ public final class Optimizer {
     
                 case Token.CATCH:
                     result.append("catch");
+                    catchPending = true;
                     newBlock(currentToken);
                     break;
     
@@ -455,6 +1771,7 @@ public final class Optimizer {
     
                 case Token.CASE:
                     result.append("case ");
+                    caseLabel = 0;
                     break;
     
                 case Token.DEFAULT:
@@ -468,9 +1785,12 @@ public final class Optimizer {
     
                 case Token.VAR:
                     if (scopeQualifier.length() > 0) result.append("var ");
+                    varNesting.add(nesting);
                     break;
     
                 case Token.SEMI:
+                    endVar();
+                    
                     if (scopeState == ScopeState.START_FOR) {
                         result.append(';');
                     } else {
@@ -530,11 +1850,18 @@ public final class Optimizer {
     
                 case Token.HOOK:
                     result.append("?");
+                    if (caseLabel >= 0) caseLabel++;
                     break;
     
                 case Token.OBJECTLIT:
                 case Token.COLON:
                     result.append(':');
+                    
+                    //The colon of a conditional in a case label is not the end of the label
+                    if (currentToken == Token.COLON && caseLabel >= 0) {
+                        caseLabel = caseLabel == 0 ? -1 : caseLabel - 1;
+                    }
+                    
                     break;
     
                 case Token.OR:
@@ -664,9 +1991,261 @@ public final class Optimizer {
                 
                 ++i;
             }
+            
+            if (report != null && result.length() != mark) report.add(getCategory(currentToken), result.length() - mark);
+        }
+    }
+    
+    private ByteReport.Category getCategory(int token) {
+        switch (token) {
+        case Token.NAME:
+            return nameReplaced ? ByteReport.Category.ALIASED : ByteReport.Category.IDENTIFIER;
+            
+        case Token.STRING:
+        case Token.REGEXP:
+            return nameReplaced ? ByteReport.Category.ALIASED : ByteReport.Category.STRING;
+            
+        case Token.NUMBER:
+            return nameReplaced ? ByteReport.Category.ALIASED : ByteReport.Category.NUMBER;
+            
+        case Token.TRUE:
+        case Token.FALSE:
+        case Token.NULL:
+            return nameReplaced ? ByteReport.Category.ALIASED : ByteReport.Category.KEYWORD;
+            
+        case Token.THIS:
+        case Token.FUNCTION:
+        case Token.NEW:
+        case Token.DELPROP:
+        case Token.IF:
+        case Token.ELSE:
+        case Token.FOR:
+        case Token.IN:
+        case Token.WITH:
+        case Token.WHILE:
+        case Token.DO:
+        case Token.TRY:
+        case Token.CATCH:
+        case Token.FINALLY:
+        case Token.THROW:
+        case Token.SWITCH:
+        case Token.GOTO:
+        case Token.BREAK:
+        case Token.CONTINUE:
+        case Token.CASE:
+        case Token.DEFAULT:
+        case Token.RETURN:
+        case Token.VAR:
+        case Token.INSTANCEOF:
+        case Token.TYPEOF:
+        case Token.VOID:
+            return ByteReport.Category.KEYWORD;
+            
+        default:
+            return ByteReport.Category.PUNCTUATION;
+        }
+    }
+    
+    //Replaces a large function body with a stub that compiles the body on the first call, returns whether it did.
+    //A statement's name stays in scope, so its cache is declared after it, named after the body so that the statements
+    //of one scope do not share it. An expression is wrapped in a scope of its own that holds the cache.
+    private boolean lazyFunction(StringBuffer result, int start, int bodyStart, boolean statement) {
+        int bodyLength = result.length() - 1 - bodyStart;
+        if (bodyLength < lazyThreshold) return false;
+        String function = "(function" + result.substring(result.indexOf("(", start), result.length()) + ")";
+        String cache = statement ? LAZY_VARIABLE + Long.toHexString(CountMinSketch.fingerprint(function)) : LAZY_VARIABLE;
+        result.setLength(bodyStart);
+        result.append("return(").append(cache).append("||(").append(cache).append("=eval(\"");
+        result.append(ScriptRuntime.escapeString(function));
+        result.append("\"))).apply(this,arguments)}");
+        
+        if (statement) {
+            result.append(";var ").append(cache).append(';');
+        } else {
+            result.insert(start, "(function(){var " + cache + ";return ");
+            result.append("})()");
+        }
+        
+        return true;
+    }
+    
+    //Whether the statements at offset start with a 'use strict' directive, past any other directives
+    private static boolean isStrictDirective(String source, int offset) {
+        while (offset < source.length()) {
+            char c = source.charAt(offset);
+            
+            if (c == Token.EOL) {
+                offset++;
+            } else if (c == Token.STRING) {
+                int end = skipString(source, offset + 1);
+                if (end < source.length() && source.charAt(end) != Token.SEMI && source.charAt(end) != Token.EOL && source.charAt(end) != Token.RC) return false;
+                if (getString(source, offset + 1).equals("use strict")) return true;
+                offset = end + 1;
+            } else {
+                return false;
+            }
         }
         
-        return result.toString();
+        return false;
+    }
+    
+    //Whether a dotted property is left unaliased because it is accessed in a hot function
+    private boolean isHotProperty(String str) {
+        if (hotFunctions == null || (hotFunctions.isEmpty() && hotProperties.isEmpty())) return false;
+        if (hotDepth == 0 && !hotFunctions.isEmpty()) return false;
+        return hotProperties.isEmpty() || hotProperties.contains(str);
+    }
+    
+    //Records the function's span, and passes the names it uses from outside on to the enclosing function
+    private void endFunctionScope(String source, FunctionInfo function, int end) {
+        FunctionScope scope = scopeStack.remove(scopeStack.size() - 1);
+        scope.used.removeAll(scope.declared);
+        if (scopeStack.size() > 0) scopeStack.get(scopeStack.size() - 1).used.addAll(scope.used);
+        int start = function.offset;
+        int length = end - start;
+        if (source.charAt(start + 1) != FUNCTION_EXPRESSION || length < functionThreshold) return;
+        int index = functionIndex.find(start);
+        long hash = functionIndex.getHash(index);
+        FunctionSpan fs = getSpan(hash, functionIndex.getCheck(index), length);
+        
+        if (fs == null) {
+            fs = new FunctionSpan();
+            fs.check = functionIndex.getCheck(index);
+            fs.length = length;
+            fs.scriptName = scriptName;
+            fs.offset = start;
+            fs.free = scope.used;
+            fs.next = functionSpans.get(hash);
+            functionSpans.put(hash, fs);
+        } else if (fs.text == null) {
+            //Only functions that repeat keep their source, the first repeat is taken on the strength of the hashes
+            fs.text = source.substring(start, end);
+        } else if (!source.regionMatches(start, fs.text, 0, length)) {
+            return;
+        }
+        
+        fs.count++;
+        fs.hot |= function.hot;
+        fs.strict |= function.strict;
+        if (functionIndex.getName(index).length() > 0) fs.names.add(functionIndex.getName(index));
+        if (start > 0 && (source.charAt(start - 1) == Token.NEW || (source.charAt(start - 1) == Token.LP && start > 1 && source.charAt(start - 2) == Token.NEW))) fs.constructed = true;
+        countScript(fs.usage);
+    }
+    
+    //Records the names used as constructors, so that functions bound to them are not shared
+    private void trackConstructor(String source, String str, int end) {
+        if (priorToken == Token.DOT && str.equals("prototype") && lastName != null) {
+            prototypeOwners.add(lastName);
+        } else if (priorToken == Token.NEW) {
+            //The constructor of 'new a.b.X()' is bound to 'X'
+            while (end + 1 < source.length() && source.charAt(end) == Token.DOT && source.charAt(end + 1) == Token.NAME) {
+                str = getString(source, end + 2);
+                end = skipString(source, end + 2);
+            }
+            
+            newTargets.add(str);
+        }
+    }
+    
+    //Records where a name is declared or used, so functions that close over local variables are not shared
+    private void trackName(String source, String str, int nextToken) {
+        if (nextToken == Token.OBJECTLIT || nextToken == Token.COLON || priorToken == Token.BREAK || priorToken == Token.CONTINUE) return;
+        FunctionScope scope = scopeStack.isEmpty() ? null : scopeStack.get(scopeStack.size() - 1);
+        
+        if (isDeclaration()) {
+            //A function statement's name is declared in the enclosing scope
+            if (priorToken == Token.FUNCTION && source.charAt(functionStack.get(functionStack.size() - 1).offset + 1) == FUNCTION_STATEMENT) {
+                scope = scopeStack.size() > 1 ? scopeStack.get(scopeStack.size() - 2) : null;
+            }
+            
+            if (scope == null) {
+                topLevelNames.add(str);
+            } else {
+                scope.declared.add(str);
+                localNames.add(str);
+            }
+        } else if (scope != null) {
+            scope.used.add(str);
+        }
+    }
+    
+    private void closeNesting() {
+        nesting--;
+        while (varNesting.size() > 0 && varNesting.get(varNesting.size() - 1) > nesting) varNesting.remove(varNesting.size() - 1);
+    }
+    
+    private void endVar() {
+        if (varNesting.size() > 0 && varNesting.get(varNesting.size() - 1) == nesting) varNesting.remove(varNesting.size() - 1);
+    }
+    
+    //Counts or replaces references to global names, returns the local name a reference is replaced with
+    private String processGlobal(String str, int nextToken) {
+        //Property names in object literals and labels are not references
+        if (nextToken == Token.OBJECTLIT || nextToken == Token.COLON || priorToken == Token.BREAK || priorToken == Token.CONTINUE) return null;
+        
+        if (analyzeNames) {
+            boolean declared = isDeclaration();
+            boolean assigned = isAssignment(nextToken) || nextToken == Token.INC || nextToken == Token.DEC
+                || priorToken == Token.INC || priorToken == Token.DEC || (nextToken == Token.IN && scopeState == ScopeState.START_FOR);
+            
+            if (declared || assigned || priorToken == Token.TYPEOF || priorToken == Token.DELPROP) {
+                excludedGlobals.add(str);
+                return null;
+            }
+        }
+        
+        return processLiteral(str);
+    }
+    
+    //Whether the property name ending at offset is assigned, e.g. 'window.X=' or 'this["X"]++', which may set a global
+    private boolean isPropertyAssignment(String source, int offset, boolean asQuotedString) {
+        if (asQuotedString) {
+            if (priorToken != Token.LB || offset >= source.length() || source.charAt(offset) != Token.RB) return false;
+            offset++;
+        } else if (priorToken != Token.DOT) {
+            return false;
+        }
+        
+        int nextToken = offset < source.length() ? source.charAt(offset) : Token.EOF;
+        return isAssignment(nextToken) || nextToken == Token.INC || nextToken == Token.DEC;
+    }
+    
+    private boolean isDeclaration() {
+        return priorToken == Token.FUNCTION || priorToken == Token.VAR || scopeState == ScopeState.START_ARGS || catchPending
+            || (priorToken == Token.COMMA && varNesting.size() > 0 && varNesting.get(varNesting.size() - 1) == nesting);
+    }
+    
+    //Counts or replaces a literal expression, returns the local name it is replaced with
+    private String processLiteral(String str) {
+        if (analyzeNames) {
+            count(literalMap, literalUsageMap, str, USAGE_BARE);
+            return null;
+        } else {
+            String name = literalMap.get(str);
+            if (name != null && scoped) scopeLiterals.add(str);
+            return name;
+        }
+    }
+    
+    private static boolean isAssignment(int token) {
+        switch (token) {
+        case Token.ASSIGN:
+        case Token.ASSIGN_ADD:
+        case Token.ASSIGN_SUB:
+        case Token.ASSIGN_MUL:
+        case Token.ASSIGN_DIV:
+        case Token.ASSIGN_MOD:
+        case Token.ASSIGN_BITOR:
+        case Token.ASSIGN_BITXOR:
+        case Token.ASSIGN_BITAND:
+        case Token.ASSIGN_LSH:
+        case Token.ASSIGN_RSH:
+        case Token.ASSIGN_URSH:
+            return true;
+            
+        default:
+            return false;
+        }
     }
     
     private int getNext(String source, int length, int i) {
@@ -677,24 +2256,71 @@ public final class Optimizer {
         boolean replaced = false;
         
         if (analyzeNames) {
-            String sCount = varMap.get(str);
-            varMap.put(str, String.valueOf(sCount == null ? 1 : Integer.parseInt(sCount) + 1));
-            if (asQuotedString) str = "\"" + str + "\"";
+            count(varMap, usageMap, str, asQuotedString ? USAGE_QUOTED : priorToken == Token.DOT ? USAGE_DOT : USAGE_BARE);
+            if (asQuotedString) str = quoteString(str);
         } else {
             String name = varMap.get(str);
             
             if (name == null) {
-                if (asQuotedString) str = "\"" + str + "\"";
+                if (asQuotedString) str = quoteString(str);
             } else {
                 replaced = true;
+                if (scoped) scopeNames.add(str);
                 str = name;
             }
         }
         
         sb.append(str);
+        nameReplaced = replaced;
         return replaced;
     }
     
+    private static int[] getUsage(Map<String, int[]> usages, String str) {
+        int[] usage = usages.get(str);
+        if (usage == null) usages.put(str, usage = new int[USAGE_SCRIPT + 1]);
+        return usage;
+    }
+    
+    //Counts the script being analyzed once in usage, for the imports of scoped output
+    private void countScript(int[] usage) {
+        if (usage[USAGE_SCRIPT] == scriptNum) return;
+        usage[USAGE_SCRIPT] = scriptNum;
+        usage[USAGE_FILES]++;
+    }
+    
+    //Adds an occurrence of str of the given kind to counts and usages, unless it is left to the sketch
+    private void count(Map<String, String> counts, Map<String, int[]> usages, String str, int kind) {
+        String sCount = counts.get(str);
+        int[] usage;
+        
+        if (sCount == null && sketch != null && str.length() >= sketchThreshold) {
+            //Literals are kept apart from names in the sketch
+            String key = counts == literalMap ? '\0' + str : str;
+            if (sketch.add(key) == 0) return;
+            
+            //The sketch may only report a repeat because other keys share its counters, so a repeat is only kept
+            //once a fingerprint of the key confirms it. Just the confirmed occurrences are counted, by their kind.
+            Long fingerprint = CountMinSketch.fingerprint(key);
+            usage = sketchRepeats.remove(fingerprint);
+            
+            if (usage == null) {
+                sketchRepeats.put(fingerprint, usage = new int[USAGE_SCRIPT + 1]);
+                usage[kind]++;
+                countScript(usage);
+                return;
+            }
+            
+            usages.put(str, usage);
+            sCount = String.valueOf(usage[USAGE_DOT] + usage[USAGE_QUOTED] + usage[USAGE_BARE]);
+        } else {
+            usage = getUsage(usages, str);
+        }
+        
+        counts.put(str, String.valueOf(sCount == null ? 1 : Integer.parseInt(sCount) + 1));
+        usage[kind]++;
+        countScript(usage);
+    }
+    
     private int printSourceString(String source, int offset, boolean asQuotedString, StringBuffer sb) {
         int length = source.charAt(offset);
         ++offset;
@@ -706,28 +2332,20 @@ public final class Optimizer {
         
         if (sb != null) {
             String str = source.substring(offset, offset + length);
+            nameReplaced = false;
+            if (analyzeNames && isPropertyAssignment(source, offset + length, asQuotedString)) excludedGlobals.add(str);
+            
+            if (analyzeNames && functionThreshold > 0 && currentToken == Token.NAME) {
+                trackConstructor(source, str, offset + length);
+                lastName = str;
+            }
             
             if (asQuotedString) {
-                str = REGEX_DOUBLE_SLASH.matcher(str).replaceAll("\\\\\\\\");
-                str = REGEX_DOUBLE_QUOTE.matcher(str).replaceAll("\\\\\"");
-                str = REGEX_CRLF.matcher(str).replaceAll("\\\\r\\\\n");
-                
-                Matcher matcher = REGEX_UNICODE.matcher(str);
-                StringBuffer sbu = new StringBuffer();
-                
-                while (matcher.find()) {
-                    String hexCode = Integer.toHexString(matcher.group(1).charAt(0));
-                    matcher.appendReplacement(sbu, "\\\\u");
-                    for (int num = 4 - hexCode.length(); --num >= 0;) sbu.append('0');
-                    sbu.append(hexCode);
-                }
-                
-                matcher.appendTail(sbu);
-                str = sbu.toString();
-                
                 processName(sb, str, asQuotedString);
             } else if (priorToken == Token.DOT) {
-                if (processName(sb, str, asQuotedString)) {
+                if (isHotProperty(str)) {
+                    sb.append(str);
+                } else if (processName(sb, str, asQuotedString)) {
                     sb.setCharAt(sb.lastIndexOf("."), '[');
                     sb.append(']');
                 }
@@ -770,10 +2388,38 @@ public final class Optimizer {
                         
                     }
                 } else {*/
-                    usedNameMap.add(str);
-                    sb.append(str);
+                    if (exportPending && priorToken == Token.FUNCTION) {
+                        if (!analyzeNames) scopeExports.add(str);
+                        exportPending = false;
+                    }
+                    
+                    //Generated names never get as long as the keys left to the sketch
+                    if (analyzeNames && (sketch == null || str.length() < sketchThreshold)) usedNameMap.add(str);
+                    String name = null;
+                    
+                    if (currentToken == Token.NAME) {
+                        int nextToken = offset + length < source.length() ? source.charAt(offset + length) : Token.EOF;
+                        if (analyzeNames && functionThreshold > 0) trackName(source, str, nextToken);
+                        name = processGlobal(str, nextToken);
+                        catchPending = false;
+                    }
+                    
+                    if (name == null) {
+                        sb.append(str);
+                    } else {
+                        sb.append(name);
+                        nameReplaced = true;
+                    }
                 //}
             }
+            
+            if (byteReport != null && !analyzeNames && !nameReplaced) {
+                if (asQuotedString) {
+                    byteReport.addString(str);
+                } else if (currentToken == Token.NAME) {
+                    byteReport.addIdentifier(str);
+                }
+            }
         }
         
         return offset + length;
@@ -810,6 +2456,162 @@ public final class Optimizer {
         return REGEX_VALID_NAME.matcher(name).matches() && Arrays.binarySearch(RESERVED_NAMES, name) < 0;
     }    
     
+    //Quotes and escapes the value of a string literal
+    private String quoteString(String str) {
+        if (compactLiterals) return compactString(str);
+        str = REGEX_DOUBLE_SLASH.matcher(str).replaceAll("\\\\\\\\");
+        str = REGEX_DOUBLE_QUOTE.matcher(str).replaceAll("\\\\\"");
+        str = REGEX_CRLF.matcher(str).replaceAll("\\\\r\\\\n");
+        
+        Matcher matcher = REGEX_UNICODE.matcher(str);
+        StringBuffer sbu = new StringBuffer();
+        sbu.append('"');
+        
+        while (matcher.find()) {
+            String hexCode = Integer.toHexString(matcher.group(1).charAt(0));
+            matcher.appendReplacement(sbu, "\\\\u");
+            for (int num = 4 - hexCode.length(); --num >= 0;) sbu.append('0');
+            sbu.append(hexCode);
+        }
+        
+        matcher.appendTail(sbu);
+        sbu.append('"');
+        return sbu.toString();
+    }
+    
+    static String compactString(String str) {
+        int doubleQuotes = 0;
+        int singleQuotes = 0;
+        
+        for (int i = 0, cnt = str.length(); i < cnt; i++) {
+            char c = str.charAt(i);
+            if (c == '"') doubleQuotes++;
+            else if (c == '\'') singleQuotes++;
+        }
+        
+        char quote = singleQuotes < doubleQuotes ? '\'' : '"';
+        StringBuffer sb = new StringBuffer(str.length() + 2);
+        sb.append(quote);
+        
+        for (int i = 0, cnt = str.length(); i < cnt; i++) {
+            char c = str.charAt(i);
+            
+            switch (c) {
+            case '\\': sb.append("\\\\"); break;
+            case '\n': sb.append("\\n"); break;
+            case '\r': sb.append("\\r"); break;
+            case '\t': sb.append("\\t"); break;
+            case '\b': sb.append("\\b"); break;
+            case '\f': sb.append("\\f"); break;
+                
+            default:
+                if (c == quote) {
+                    sb.append('\\').append(c);
+                } else if (c < 0x20 || (c >= 0x7f && c <= 0xff)) {
+                    String hexCode = Integer.toHexString(c);
+                    sb.append("\\x");
+                    if (hexCode.length() == 1) sb.append('0');
+                    sb.append(hexCode);
+                } else if (c > 0xff) {
+                    String hexCode = Integer.toHexString(c);
+                    sb.append("\\u");
+                    for (int num = 4 - hexCode.length(); --num >= 0;) sb.append('0');
+                    sb.append(hexCode);
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+        
+        sb.append(quote);
+        return sb.toString();
+    }
+    
+    //Shortest of the positional, exponent and hex forms of a number that reads back as the same value
+    static String compactNumber(double number) {
+        String str = ScriptRuntime.numberToString(number, 10);
+        if (Double.isNaN(number) || Double.isInfinite(number) || number < 0) return str;
+        String digits = str;
+        int exp = 0;
+        int e = str.indexOf('e');
+        
+        if (e != -1) {
+            digits = str.substring(0, e);
+            String sExp = str.substring(e + 1);
+            exp = Integer.parseInt(sExp.startsWith("+") ? sExp.substring(1) : sExp);
+        }
+        
+        int dot = digits.indexOf('.');
+        
+        if (dot != -1) {
+            exp -= digits.length() - dot - 1;
+            digits = digits.substring(0, dot) + digits.substring(dot + 1);
+        }
+        
+        int start = 0;
+        while (start < digits.length() - 1 && digits.charAt(start) == '0') start++;
+        digits = digits.substring(start);
+        int end = digits.length();
+        while (end > 1 && digits.charAt(end - 1) == '0') end--;
+        exp += digits.length() - end;
+        digits = digits.substring(0, end);
+        if (digits.equals("0")) return "0";
+        
+        //digits * 10^exp, with no leading or trailing zeros in digits
+        StringBuffer positional = new StringBuffer();
+        
+        if (exp >= 0) {
+            positional.append(digits);
+            for (int i = exp; --i >= 0;) positional.append('0');
+        } else if (-exp >= digits.length()) {
+            positional.append('.');
+            for (int i = -exp - digits.length(); --i >= 0;) positional.append('0');
+            positional.append(digits);
+        } else {
+            positional.append(digits, 0, digits.length() + exp).append('.').append(digits, digits.length() + exp, digits.length());
+        }
+        
+        String best = positional.toString();
+        if (exp != 0) best = shorterNumber(best, digits + "e" + exp, number);
+        
+        if (number == Math.rint(number) && number < 9007199254740992.0) {
+            best = shorterNumber(best, "0x" + Long.toHexString((long)number), number);
+        }
+        
+        return best.equals(str) || Double.doubleToLongBits(parseNumber(best)) == Double.doubleToLongBits(number) ? best : str;
+    }
+    
+    private static String shorterNumber(String best, String candidate, double number) {
+        if (candidate.length() >= best.length()) return best;
+        return Double.doubleToLongBits(parseNumber(candidate)) == Double.doubleToLongBits(number) ? candidate : best;
+    }
+    
+    private static double parseNumber(String str) {
+        return str.startsWith("0x") ? (double)Long.parseLong(str.substring(2), 16) : Double.parseDouble(str);
+    }
+    
+    //Returns the offset past the length prefixed string at offset, like printSourceString without printing it
+    private static int skipString(String source, int offset) {
+        int length = source.charAt(offset);
+        ++offset;
+        
+        if ((0x8000 & length) != 0) {
+            length = ((0x7FFF & length) << 16) | source.charAt(offset);
+            ++offset;
+        }
+        
+        return offset + length;
+    }
+    
+    private static String getString(String source, int offset) {
+        int start = (0x8000 & source.charAt(offset)) != 0 ? offset + 2 : offset + 1;
+        return source.substring(start, skipString(source, offset));
+    }
+    
+    private static int skipNumber(String source, int offset) {
+        return offset + (source.charAt(offset) == 'S' ? 2 : 5);
+    }
+    
     private int printSourceNumber(String source, int offset, StringBuffer sb) {
         double number = 0.0;
         char type = source.charAt(offset);
@@ -838,7 +2640,18 @@ public final class Optimizer {
             throw new RuntimeException();
         }
         
-        if (sb != null) sb.append(ScriptRuntime.numberToString(number, 10));        
+        if (sb != null) {
+            String str = compactNumber(number);
+            String name = null;
+            
+            //Numeric property names in object literals and case labels stay as they are
+            if (caseLabel < 0 && (offset >= source.length() || source.charAt(offset) != Token.OBJECTLIT)) name = processLiteral(str);
+            nameReplaced = name != null;
+            if (name != null) str = name;
+            else if (!compactLiterals) str = ScriptRuntime.numberToString(number, 10);
+            sb.append(str);
+        }
+        
         return offset;
     }
 }
@@ -0,0 +1,322 @@
+package thinwire.tools.jso;
+
+/*
+ * Copyright 2001-2005 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs work items through a chain of stages, each with its own threads, connected
+ * by bounded queues. A stage that falls behind fills its queue and blocks the
+ * stage before it, so memory stays bounded while I/O and CPU work overlap. I/O
+ * stages run on virtual threads when the JVM has them, CPU stages on a fixed
+ * number of platform threads. If any stage fails the remaining items are drained
+ * without being processed and the first failure is thrown from {@link #run}.
+ *
+ * An ordered stage has a single thread that takes the items in the order they were
+ * fed to the pipeline, however the threads of the stages before it interleave, so
+ * that its results do not depend on scheduling. It holds back the items that
+ * arrive early until the ones before them do, or until a stage before it drops
+ * them. So that the items held back stay bounded as well, no more items are fed
+ * than the queue size plus one for each thread of the stages before the last
+ * ordered stage, until that stage is done with the earliest of them.
+ *
+ * Every stage keeps the number of items it processed, the time its threads spent
+ * processing them and the depth of its input queue, so the bottleneck of a run can
+ * be read from {@link #getMetrics()}.
+ */
+final class Pipeline<T> {
+    private static final Object END = new Object();
+    private static final Method OF_VIRTUAL;
+    private static final Method UNSTARTED;
+
+    static {
+        Method ofVirtual = null;
+        Method unstarted = null;
+
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+        } catch (Exception e) {
+            //Virtual threads are not available before Java 21
+            ofVirtual = null;
+        }
+
+        OF_VIRTUAL = ofVirtual;
+        UNSTARTED = unstarted;
+    }
+
+    abstract static class Stage<T> {
+        private final String name;
+        private final int threads;
+        private final boolean io;
+        private final boolean ordered;
+        private final Set<Integer> skipped = Collections.synchronizedSet(new HashSet<Integer>());
+        private Pipeline<T> pipeline;
+        private int index;
+        private Stage<T> next;
+        private BlockingQueue<Object> queue;
+        private AtomicInteger running;
+        private AtomicLong items = new AtomicLong();
+        private AtomicLong busy = new AtomicLong();
+        private long depthSum;
+        private long depthSamples;
+        private int maxDepth;
+
+        Stage(String name, int threads, boolean io) {
+            this.name = name;
+            this.threads = Math.max(1, threads);
+            this.io = io;
+            ordered = false;
+        }
+
+        //An ordered stage, which runs on one platform thread
+        Stage(String name) {
+            this.name = name;
+            threads = 1;
+            io = false;
+            ordered = true;
+        }
+
+        //Called on each of the stage's threads before it takes any item
+        void begin() throws Exception {
+        }
+
+        //Returns false if the item should not be passed on to the next stage
+        abstract boolean process(T item) throws Exception;
+
+        //Called on each of the stage's threads after the last item
+        void end() {
+        }
+
+        @SuppressWarnings("unchecked")
+        private void handle(Object item) throws InterruptedException {
+            boolean pass = false;
+
+            if (pipeline.failure == null) {
+                long start = System.nanoTime();
+
+                try {
+                    pass = process((T)item);
+                    items.incrementAndGet();
+                } catch (Throwable t) {
+                    pipeline.fail(t);
+                } finally {
+                    busy.addAndGet(System.nanoTime() - start);
+                }
+            }
+
+            if (pass && next != null) {
+                if (index == pipeline.lastOrdered) pipeline.window.release();
+                next.put(item);
+            } else {
+                pipeline.leave(item, index);
+            }
+        }
+
+        private void put(Object item) throws InterruptedException {
+            queue.put(item);
+            int depth = queue.size();
+
+            synchronized (this) {
+                depthSum += depth;
+                depthSamples++;
+                if (depth > maxDepth) maxDepth = depth;
+            }
+        }
+
+        private void work() {
+            boolean begun = false;
+
+            try {
+                begin();
+                begun = true;
+            } catch (Throwable t) {
+                pipeline.fail(t);
+            }
+
+            try {
+                Map<Integer, Object> early = new TreeMap<Integer, Object>();
+                int expected = 0;
+
+                for (Object item; (item = queue.take()) != END;) {
+                    if (!ordered) {
+                        handle(item);
+                        continue;
+                    }
+
+                    early.put(pipeline.sequence.get(item), item);
+
+                    for (;;) {
+                        if ((item = early.remove(expected)) != null) {
+                            handle(item);
+                        } else if (!skipped.remove(expected)) {
+                            break;
+                        }
+
+                        expected++;
+                    }
+                }
+
+                //Only left when the last items were dropped before getting here, the rest still go in order
+                for (Object item : early.values()) handle(item);
+            } catch (InterruptedException e) {
+                pipeline.fail(e);
+            } finally {
+                if (begun) end();
+
+                if (running.decrementAndGet() == 0 && next != null) {
+                    try {
+                        for (int i = 0; i < next.threads; i++) next.queue.put(END);
+                    } catch (InterruptedException e) {
+                        pipeline.fail(e);
+                    }
+                }
+            }
+        }
+    }
+
+    private final String name;
+    private final int queueSize;
+    private final List<Stage<T>> stages = new ArrayList<Stage<T>>();
+    private final Map<Object, Integer> sequence = Collections.synchronizedMap(new IdentityHashMap<Object, Integer>());
+    private volatile Throwable failure;
+    private int lastOrdered = -1;
+    private Semaphore window;
+    private long wallTime;
+
+    Pipeline(String name, int queueSize) {
+        this.name = name;
+        this.queueSize = Math.max(1, queueSize);
+    }
+
+    Pipeline<T> add(Stage<T> stage) {
+        stage.pipeline = this;
+        stage.index = stages.size();
+        if (stage.ordered) lastOrdered = stage.index;
+        stage.queue = new ArrayBlockingQueue<Object>(queueSize);
+        if (stages.size() > 0) stages.get(stages.size() - 1).next = stage;
+        stages.add(stage);
+        return this;
+    }
+
+    //Feeds the items to the first stage from the calling thread and waits for the last stage to finish
+    void run(Iterable<T> items) throws Exception {
+        long start = System.nanoTime();
+        List<Thread> workers = new ArrayList<Thread>();
+        int permits = queueSize;
+        for (int i = 0; i < lastOrdered; i++) permits += stages.get(i).threads;
+        window = lastOrdered >= 0 ? new Semaphore(permits) : null;
+
+        for (final Stage<T> stage : stages) {
+            stage.running = new AtomicInteger(stage.threads);
+
+            for (int i = 0; i < stage.threads; i++) {
+                Runnable r = new Runnable() {
+                    public void run() {
+                        stage.work();
+                    }
+                };
+
+                Thread t = stage.io ? newIOThread(r) : new Thread(r);
+                t.setName("jso-" + name + "-" + stage.name + "-" + i);
+                t.setDaemon(true);
+                t.start();
+                workers.add(t);
+            }
+        }
+
+        Stage<T> first = stages.get(0);
+
+        try {
+            for (T item : items) {
+                if (window != null) window.acquire();
+                if (failure != null) break;
+                sequence.put(item, sequence.size());
+                first.put(item);
+            }
+        } finally {
+            for (int i = 0; i < first.threads; i++) first.queue.put(END);
+            for (Thread t : workers) t.join();
+            wallTime = System.nanoTime() - start;
+        }
+
+        if (failure instanceof Exception) throw (Exception)failure;
+        if (failure instanceof Error) throw (Error)failure;
+    }
+
+    private synchronized void fail(Throwable t) {
+        if (failure != null) return;
+        failure = t;
+        //Wakes the feeding thread if it waits for the window, it stops feeding now
+        if (window != null) window.release();
+    }
+
+    //The item goes no further than the stage at index, the ordered stages after it stop waiting for it
+    private void leave(Object item, int index) {
+        if (index > lastOrdered) return;
+        window.release();
+        Integer seq = sequence.get(item);
+
+        for (int i = index + 1; i <= lastOrdered; i++) {
+            Stage<T> s = stages.get(i);
+            if (s.ordered) s.skipped.add(seq);
+        }
+    }
+
+    private static Thread newIOThread(Runnable r) {
+        if (OF_VIRTUAL != null) {
+            try {
+                return (Thread)UNSTARTED.invoke(OF_VIRTUAL.invoke(null), r);
+            } catch (Exception e) {
+                //Fall back to a platform thread
+            }
+        }
+
+        return new Thread(r);
+    }
+
+    //One line per stage: items, threads, busy time, utilization of its threads over the run and input queue depth
+    List<String> getMetrics() {
+        List<String> lines = new ArrayList<String>();
+        double wall = Math.max(1, wallTime);
+
+        for (Stage<T> s : stages) {
+            long busy = s.busy.get();
+            int utilization = (int)Math.round(busy * 100 / (wall * s.threads));
+            double avgDepth = s.depthSamples == 0 ? 0 : Math.round(s.depthSum * 10.0 / s.depthSamples) / 10.0;
+            lines.add(s.name + ": " + s.items.get() + " item(s) on " + s.threads + (s.io && OF_VIRTUAL != null ? " virtual" : "")
+                + " thread(s), busy " + (busy / 1000000) + " ms, utilization " + utilization + "%, queue depth avg "
+                + avgDepth + " max " + s.maxDepth + " of " + queueSize);
+        }
+
+        lines.add("total: " + (wallTime / 1000000) + " ms");
+        return lines;
+    }
+}
@@ -0,0 +1,161 @@
+package thinwire.tools.jso;
+
+/*
+ * Copyright 2001-2005 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Output settings for one set of optimized scripts. Several profiles can be given
+ * to the jso goal, e.g. a debuggable build and a fully optimized one, and all of
+ * them are generated from a single analysis of the sources. Any setting that is
+ * left out of a profile is taken from the goal's own configuration.
+ */
+public class Profile {
+    private String name;
+    private File destdir;
+    private Boolean compress;
+    private Boolean aliasNames;
+    private Integer aliasThreshold;
+    private Boolean aliasGlobals;
+    private Boolean poolNumbers;
+    private Boolean scoped;
+    private Boolean compactLiterals;
+    private Integer lazyThreshold;
+    private List<String> lazyFiles;
+    private Boolean byteReport;
+    private Boolean instrument;
+
+    void inherit(Profile defaults) {
+        if (destdir == null) destdir = defaults.destdir;
+        if (compress == null) compress = defaults.compress;
+        if (aliasNames == null) aliasNames = defaults.aliasNames;
+        if (aliasThreshold == null) aliasThreshold = defaults.aliasThreshold;
+        if (aliasGlobals == null) aliasGlobals = defaults.aliasGlobals;
+        if (poolNumbers == null) poolNumbers = defaults.poolNumbers;
+        if (scoped == null) scoped = defaults.scoped;
+        if (compactLiterals == null) compactLiterals = defaults.compactLiterals;
+        if (lazyThreshold == null) lazyThreshold = defaults.lazyThreshold;
+        if (lazyFiles == null) lazyFiles = defaults.lazyFiles;
+        if (byteReport == null) byteReport = defaults.byteReport;
+        if (instrument == null) instrument = defaults.instrument;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public File getDestdir() {
+        return destdir;
+    }
+
+    public void setDestdir(File destdir) {
+        this.destdir = destdir;
+    }
+
+    public boolean isCompress() {
+        return Boolean.TRUE.equals(compress);
+    }
+
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+
+    public boolean isAliasNames() {
+        return !Boolean.FALSE.equals(aliasNames);
+    }
+
+    public void setAliasNames(boolean aliasNames) {
+        this.aliasNames = aliasNames;
+    }
+
+    public int getAliasThreshold() {
+        return aliasThreshold == null ? 0 : aliasThreshold;
+    }
+
+    public void setAliasThreshold(int aliasThreshold) {
+        this.aliasThreshold = aliasThreshold;
+    }
+
+    public boolean isAliasGlobals() {
+        return Boolean.TRUE.equals(aliasGlobals);
+    }
+
+    public void setAliasGlobals(boolean aliasGlobals) {
+        this.aliasGlobals = aliasGlobals;
+    }
+
+    public boolean isPoolNumbers() {
+        return Boolean.TRUE.equals(poolNumbers);
+    }
+
+    public void setPoolNumbers(boolean poolNumbers) {
+        this.poolNumbers = poolNumbers;
+    }
+
+    public boolean isScoped() {
+        return Boolean.TRUE.equals(scoped);
+    }
+
+    public void setScoped(boolean scoped) {
+        this.scoped = scoped;
+    }
+
+    public boolean isCompactLiterals() {
+        return Boolean.TRUE.equals(compactLiterals);
+    }
+
+    public void setCompactLiterals(boolean compactLiterals) {
+        this.compactLiterals = compactLiterals;
+    }
+
+    public int getLazyThreshold() {
+        return lazyThreshold == null ? 0 : lazyThreshold;
+    }
+
+    public void setLazyThreshold(int lazyThreshold) {
+        this.lazyThreshold = lazyThreshold;
+    }
+
+    public List<String> getLazyFiles() {
+        return lazyFiles;
+    }
+
+    public void setLazyFiles(List<String> lazyFiles) {
+        this.lazyFiles = lazyFiles;
+    }
+
+    public boolean isByteReport() {
+        return Boolean.TRUE.equals(byteReport);
+    }
+
+    public void setByteReport(boolean byteReport) {
+        this.byteReport = byteReport;
+    }
+
+    public boolean isInstrument() {
+        return Boolean.TRUE.equals(instrument);
+    }
+
+    public void setInstrument(boolean instrument) {
+        this.instrument = instrument;
+    }
+}
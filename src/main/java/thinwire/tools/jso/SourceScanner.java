@@ -0,0 +1,188 @@
+package thinwire.tools.jso;
+
+/*
+ * Copyright 2001-2005 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the source files under a directory tree whose paths, relative to the root
+ * and separated by '/', match any of the include globs and none of the exclude
+ * globs. The globs follow Ant conventions, '**' matches any number of directories,
+ * '*' and '?' match within one path segment. Subdirectories are walked in parallel
+ * on a fork-join pool and the files are returned sorted by path, so the order does
+ * not depend on the file system or on scheduling.
+ *
+ * Symbolic links to directories are not followed, so a link cannot make the walk
+ * loop or pull in a whole tree from elsewhere. Links to files are kept, under the
+ * path of the link rather than of its target. The excluded directories, such as the
+ * output directories when they are inside the tree, are skipped along with their
+ * contents, and so is any directory an exclude glob ending in '/**' matches as a
+ * whole, e.g. 'build/**', instead of being walked only to exclude every file.
+ */
+final class SourceScanner {
+    private final File root;
+    private final List<Pattern> includes;
+    private final List<Pattern> excludes;
+    private final List<Pattern> excludedDirPatterns;
+    private final List<File> excludedDirs;
+
+    SourceScanner(File root, List<String> includes, List<String> excludes, List<File> excludedDirs) {
+        this.root = root;
+        this.includes = compile(includes, false);
+        this.excludes = compile(excludes, false);
+        this.excludedDirPatterns = compile(excludes, true);
+        this.excludedDirs = excludedDirs == null ? new ArrayList<File>() : excludedDirs;
+    }
+
+    //The excluded directories must be canonical, since the walk starts from the canonical root
+    List<File> scan(int threads) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+
+        try {
+            List<File> files = pool.invoke(new Walk(root.getCanonicalFile(), ""));
+
+            Collections.sort(files, new Comparator<File>() {
+                public int compare(File o1, File o2) {
+                    return o1.getPath().compareTo(o2.getPath());
+                }
+            });
+
+            return files;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private boolean matches(String path) {
+        for (Pattern p : excludes) {
+            if (p.matcher(path).matches()) return false;
+        }
+
+        for (Pattern p : includes) {
+            if (p.matcher(path).matches()) return true;
+        }
+
+        return false;
+    }
+
+    private boolean isExcludedDir(File dir, String path) {
+        if (excludedDirs.contains(dir) || Files.isSymbolicLink(dir.toPath())) return true;
+
+        for (Pattern p : excludedDirPatterns) {
+            if (p.matcher(path).matches()) return true;
+        }
+
+        return false;
+    }
+
+    private final class Walk extends RecursiveTask<List<File>> {
+        private static final long serialVersionUID = 1L;
+        private final File dir;
+        private final String path;
+
+        Walk(File dir, String path) {
+            this.dir = dir;
+            this.path = path;
+        }
+
+        protected List<File> compute() {
+            List<File> files = new ArrayList<File>();
+            List<Walk> walks = new ArrayList<Walk>();
+            File[] children = dir.listFiles();
+            if (children == null) return files;
+
+            for (File f : children) {
+                String childPath = path + f.getName();
+
+                if (f.isDirectory()) {
+                    if (isExcludedDir(f, childPath)) continue;
+                    Walk w = new Walk(f, childPath + "/");
+                    w.fork();
+                    walks.add(w);
+                } else if (f.isFile() && matches(childPath)) {
+                    files.add(f);
+                }
+            }
+
+            for (Walk w : walks) {
+                files.addAll(w.join());
+            }
+
+            return files;
+        }
+    }
+
+    //With dirs set only the globs that exclude whole directories are compiled, to patterns matching the directories
+    static List<Pattern> compile(List<String> globs, boolean dirs) {
+        List<Pattern> patterns = new ArrayList<Pattern>();
+
+        if (globs != null) {
+            for (String glob : globs) {
+                glob = glob.trim().replace('\\', '/');
+                if (glob.startsWith("/")) glob = glob.substring(1);
+                if (glob.endsWith("/")) glob += "**";
+
+                if (!dirs) {
+                    patterns.add(toPattern(glob));
+                } else if (glob.endsWith("/**") && glob.length() > 3) {
+                    patterns.add(toPattern(glob.substring(0, glob.length() - 3)));
+                }
+            }
+        }
+
+        return patterns;
+    }
+
+    private static Pattern toPattern(String glob) {
+        StringBuilder sb = new StringBuilder();
+
+        for (int i = 0, cnt = glob.length(); i < cnt; i++) {
+            char c = glob.charAt(i);
+
+            if (c == '*' && i + 1 < cnt && glob.charAt(i + 1) == '*') {
+                i++;
+
+                if (i + 1 < cnt && glob.charAt(i + 1) == '/') {
+                    //'**/' also matches no directory at all
+                    i++;
+                    sb.append("(?:.*/)?");
+                } else {
+                    sb.append(".*");
+                }
+            } else if (c == '*') {
+                sb.append("[^/]*");
+            } else if (c == '?') {
+                sb.append("[^/]");
+            } else if ("\\.[]{}()+-^$|".indexOf(c) >= 0) {
+                sb.append('\\').append(c);
+            } else {
+                sb.append(c);
+            }
+        }
+
+        return Pattern.compile(sb.toString());
+    }
+}
@@ -0,0 +1,191 @@
+package thinwire.tools.jso;
+
+/*
+ * Copyright 2001-2005 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * End-to-end scaling benchmark for the jso goal. Synthetic {@link Corpus} scripts
+ * are generated into a temporary directory and the goal is run in-process
+ * over each of them, so file reading, compiling, generation, verification,
+ * compression and writing are all measured. One CSV row is written per run, which
+ * makes the results easy to compare between versions.
+ *
+ * It lives with the tests but is not one, run it with
+ * 'mvn test-compile exec:java -Dexec.mainClass=thinwire.tools.jso.Benchmark -Dexec.classpathScope=test'.
+ *
+ * Usage: Benchmark [-files 10,100,1000,10000] [-sizes 1024,65536,1048576,5242880]
+ *                  [-threads 1,4] [-runs 3] [-compress true] [-verify true] [-out file.csv]
+ *
+ * The file counts are run at the smallest size and the sizes are run at the
+ * smallest file count, rather than every combination, since the largest corpus
+ * would otherwise be tens of gigabytes.
+ */
+public final class Benchmark {
+    private int[] fileCounts = {10, 100, 1000, 10000};
+    private int[] fileSizes = {1024, 65536, 1048576, 5242880};
+    private int[] threadCounts = {1, Runtime.getRuntime().availableProcessors()};
+    private int runs = 3;
+    private boolean compress = true;
+    private boolean verify = true;
+    private File out;
+
+    public static void main(String[] args) throws Exception {
+        Benchmark bm = new Benchmark();
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String name = args[i];
+            String value = args[i + 1];
+
+            if (name.equals("-files")) {
+                bm.fileCounts = parseInts(value);
+            } else if (name.equals("-sizes")) {
+                bm.fileSizes = parseInts(value);
+            } else if (name.equals("-threads")) {
+                bm.threadCounts = parseInts(value);
+            } else if (name.equals("-runs")) {
+                bm.runs = Integer.parseInt(value);
+            } else if (name.equals("-compress")) {
+                bm.compress = Boolean.valueOf(value);
+            } else if (name.equals("-verify")) {
+                bm.verify = Boolean.valueOf(value);
+            } else if (name.equals("-out")) {
+                bm.out = new File(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + name);
+            }
+        }
+
+        bm.run();
+    }
+
+    public void run() throws Exception {
+        PrintStream ps = out == null ? System.out : new PrintStream(new FileOutputStream(out), true);
+        //The rows written so far are kept when a later corpus fails
+        try {
+            ps.println("files,fileSize,threads,compress,verify,run,inputBytes,outputBytes,wallMs,inputMBPerSec,filesPerSec,peakHeapBytes,gcCount,gcMs");
+            List<int[]> corpora = new ArrayList<int[]>();
+            for (int files : fileCounts) corpora.add(new int[] {files, fileSizes[0]});
+            for (int i = 1; i < fileSizes.length; i++) corpora.add(new int[] {fileCounts[0], fileSizes[i]});
+
+            for (int[] corpus : corpora) {
+                File root = File.createTempFile("jso-bench", "");
+                root.delete();
+                File srcdir = new File(root, "src");
+                File destdir = new File(root, "dest");
+
+                try {
+                    long inputBytes = Corpus.write(srcdir, corpus[0], corpus[1]);
+
+                    for (int threads : threadCounts) {
+                        //The first run warms up the JIT and is not reported
+                        for (int run = 0; run <= runs; run++) {
+                            Corpus.delete(destdir);
+                            destdir.mkdirs();
+                            long[] stats = execute(srcdir, destdir, threads);
+                            if (run == 0) continue;
+                            long outputBytes = sizeOf(destdir);
+                            double seconds = stats[0] / 1000000000.0;
+                            ps.println(corpus[0] + "," + corpus[1] + "," + threads + "," + compress + "," + verify + "," + run + ","
+                                + inputBytes + "," + outputBytes + "," + (stats[0] / 1000000) + ","
+                                + format(inputBytes / 1048576.0 / seconds) + "," + format(corpus[0] / seconds) + ","
+                                + stats[1] + "," + stats[2] + "," + stats[3]);
+                        }
+                    }
+                } finally {
+                    Corpus.delete(root);
+                }
+            }
+        } finally {
+            if (ps != System.out) ps.close();
+        }
+    }
+
+    //Returns wall time in nanoseconds, peak heap bytes, gc count and gc milliseconds
+    private long[] execute(File srcdir, File destdir, int threads) throws Exception {
+        Build build = new Build();
+        build.setSrcdir(srcdir);
+        build.setDestdir(destdir);
+        build.setNamemap("file0.js");
+        build.setVerify(verify);
+        build.setCompress(compress);
+        build.setThreads(threads);
+
+        build.setLog(new Build.Log() {
+            public void info(CharSequence message) { }
+            public void warn(CharSequence message) { }
+        });
+
+        System.gc();
+        List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                pools.add(pool);
+            }
+        }
+
+        long[] gcBefore = getGcStats();
+        long start = System.nanoTime();
+        build.execute();
+        long wall = System.nanoTime() - start;
+        long[] gcAfter = getGcStats();
+        long peak = 0;
+        for (MemoryPoolMXBean pool : pools) peak += pool.getPeakUsage().getUsed();
+        return new long[] {wall, peak, gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1]};
+    }
+
+    private static long[] getGcStats() {
+        long count = 0;
+        long time = 0;
+
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+            time += Math.max(0, gc.getCollectionTime());
+        }
+
+        return new long[] {count, time};
+    }
+
+    private static long sizeOf(File f) {
+        if (f.isFile()) return f.length();
+        long size = 0;
+        File[] children = f.listFiles();
+        if (children != null) for (File c : children) size += sizeOf(c);
+        return size;
+    }
+
+    private static int[] parseInts(String value) {
+        String[] parts = value.split(",");
+        int[] ary = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) ary[i] = Integer.parseInt(parts[i].trim());
+        return ary;
+    }
+
+    private static String format(double d) {
+        return String.valueOf(Math.round(d * 100) / 100.0);
+    }
+}
@@ -0,0 +1,81 @@
+package thinwire.tools.jso;
+
+/*
+ * Copyright 2001-2005 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+
+import junit.framework.TestCase;
+
+public class BuildTest extends TestCase {
+    private File root;
+
+    protected void setUp() throws Exception {
+        root = File.createTempFile("jso-build", "");
+        root.delete();
+    }
+
+    protected void tearDown() {
+        Corpus.delete(root);
+    }
+
+    private Build getBuild(File srcdir, File destdir) {
+        Build build = new Build();
+        build.setSrcdir(srcdir);
+        build.setDestdir(destdir);
+        build.setNamemap("file0.js");
+
+        build.setLog(new Build.Log() {
+            public void info(CharSequence message) { }
+            public void warn(CharSequence message) { }
+        });
+
+        return build;
+    }
+
+    //Well past the default parallel threshold, and far too large a script for Rhino to compile to bytecode
+    public void testMultiMegabyteFileIsOptimized() throws Exception {
+        File srcdir = new File(root, "src");
+        File destdir = new File(root, "dest");
+        long size = Corpus.write(srcdir, 2, 3 * 1048576);
+        Build build = getBuild(srcdir, destdir);
+        build.setVerify(true);
+        build.execute();
+        File out0 = new File(destdir, "file0.js");
+        File out1 = new File(destdir, "file1.js");
+        assertTrue(out0.isFile() && out1.isFile());
+        assertTrue(out0.length() + out1.length() < size);
+    }
+
+    public void testLinkedFileIsWrittenAtTheLinkPath() throws Exception {
+        File srcdir = new File(root, "src");
+        File outside = new File(root, "outside");
+        Corpus.write(srcdir, 1, 1024);
+        outside.mkdirs();
+        File target = new File(outside, "ext.js");
+        Writer w = new FileWriter(target);
+        w.write("function ext(elem) { return elem.style.left; }\n");
+        w.close();
+        Files.createSymbolicLink(new File(srcdir, "ext.js").toPath(), target.toPath());
+        File destdir = new File(root, "dest");
+        getBuild(srcdir, destdir).execute();
+        assertTrue(new File(destdir, "ext.js").isFile());
+        assertEquals(2, destdir.list().length);
+    }
+}
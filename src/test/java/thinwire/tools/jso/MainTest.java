@@ -0,0 +1,109 @@
+package thinwire.tools.jso;
+
+/*
+ * Copyright 2001-2005 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class MainTest extends TestCase {
+    private static Main parse(String... args) {
+        Main main = new Main();
+        main.parse(args);
+        return main;
+    }
+
+    //The usage printed for the arguments, failing if they parse
+    private static String getUsage(String... args) {
+        try {
+            parse(args);
+        } catch (IllegalArgumentException e) {
+            return Main.getUsage(e);
+        }
+
+        fail("Parsed " + Arrays.asList(args));
+        return null;
+    }
+
+    private static void assertUsage(String message, String... args) {
+        String usage = getUsage(args);
+        assertTrue(usage, usage.startsWith(message + "\nUsage: Main "));
+    }
+
+    public void testOptionsAreSet() {
+        Main main = parse("-destdir", "out", "-namemap", "map.js", "-aliasThreshold", "3", "-lazyFiles", "a.js, b.js",
+                "-scoped", "true", "-quiet", "true");
+        Build build = main.getBuild();
+        assertEquals(new File("out"), build.getDestdir());
+        assertEquals("map.js", build.getNamemap());
+        assertEquals(3, build.getAliasThreshold());
+        assertEquals(Arrays.asList("a.js", "b.js"), build.getLazyFiles());
+        assertTrue(build.isScoped());
+        assertTrue(main.isQuiet());
+        assertFalse(main.isTrain());
+    }
+
+    public void testProfilesAreParsed() {
+        List<Profile> profiles = parse("-profiles",
+                "debug:destdir=out/debug,aliasNames=false; min : destdir=out/min,lazyFiles=a.js,b.js,c.js,aliasThreshold=2;;")
+                .getBuild().getProfiles();
+        assertEquals(2, profiles.size());
+
+        Profile debug = profiles.get(0);
+        assertEquals("debug", debug.getName());
+        assertEquals(new File("out/debug"), debug.getDestdir());
+        assertFalse(debug.isAliasNames());
+
+        Profile min = profiles.get(1);
+        assertEquals("min", min.getName());
+        assertEquals(new File("out/min"), min.getDestdir());
+        assertEquals(Arrays.asList("a.js", "b.js", "c.js"), min.getLazyFiles());
+        assertEquals(2, min.getAliasThreshold());
+    }
+
+    public void testProfileWithoutSettings() {
+        List<Profile> profiles = parse("-profiles", "plain:").getBuild().getProfiles();
+        assertEquals(1, profiles.size());
+        assertEquals("plain", profiles.get(0).getName());
+        assertNull(profiles.get(0).getDestdir());
+    }
+
+    public void testProfileErrors() {
+        assertUsage("Missing name for profile 'destdir=out'", "-profiles", "destdir=out");
+        assertUsage("Missing name for profile ':destdir=out'", "-profiles", "a:destdir=a;:destdir=out");
+        assertUsage("Invalid setting 'compress' for profile 'min'", "-profiles", "min:compress,destdir=out");
+        assertUsage("Unknown setting 'colour' for profile 'min'", "-profiles", "min:destdir=out,colour=red");
+        assertUsage("Invalid number, For input string: \"many\"", "-profiles", "min:aliasThreshold=many");
+    }
+
+    public void testOptionErrors() {
+        assertUsage("Unknown option -colour", "-colour", "red");
+        assertUsage("Missing value for option -namemap", "-destdir", "out", "-namemap");
+        assertUsage("Invalid number, For input string: \"x\"", "-threads", "x");
+    }
+
+    public void testBuildIsValidatedWithSrcdir() {
+        assertUsage("namemap must be specified", "-srcdir", "src", "-destdir", "out");
+        assertUsage("destdir must be specified for profile 'min'", "-srcdir", "src", "-namemap", "map.js",
+                "-profiles", "min:compress=true");
+        //Without a srcdir the script is read from standard input, and with -train nothing needs to be set
+        parse("-namemap", "map.js");
+        assertTrue(parse("-srcdir", "src", "-train", "true").isTrain());
+    }
+}
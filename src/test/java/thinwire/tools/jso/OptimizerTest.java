@@ -0,0 +1,421 @@
+/*
+                          ThinWire(R) JavaScript Optimizer
+                        Copyright (C) 2003-2008 ThinWire LLC
+
+  This library is free software; you can redistribute it and/or modify it under
+  the terms of the GNU Lesser General Public License as published by the Free
+  Software Foundation; either version 2.1 of the License, or (at your option) any
+  later version.
+
+  This library is distributed in the hope that it will be useful, but WITHOUT ANY
+  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public License along
+  with this library; if not, write to the Free Software Foundation, Inc., 59
+  Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+  Users who would rather have a commercial license, warranty or support should
+  contact the following company who supports the technology:
+  
+            ThinWire LLC, 5919 Greenville #335, Dallas, TX 75206-1906
+   	            email: info@thinwire.com    ph: +1 (214) 295-4859
+ 	                        http://www.thinwire.com
+*/
+package thinwire.tools.jso;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.Scriptable;
+
+public class OptimizerTest extends TestCase {
+    //Top-level statements of every kind the chunks are split after, repeated until the source is well past one chunk
+    private static String getLargeSource() {
+        StringBuilder sb = new StringBuilder();
+        
+        for (int i = 0; i < 400; i++) {
+            sb.append("function handler").append(i).append("(elem, evt) {\n");
+            sb.append("  var style = elem.style, count = ").append(i).append(";\n");
+            sb.append("  style.backgroundColor = evt.type == 'click' ? \"red\" : 'blue';\n");
+            sb.append("  for (var j = 0; j < elem.childNodes.length; j++) count += elem.childNodes[j].offsetWidth * 1.5;\n");
+            sb.append("  return function(x) { return x + count + elem.offsetHeight; };\n");
+            sb.append("}\n");
+            sb.append("var widget").append(i).append(" = { name: 'widget").append(i).append("', size: 100000, onclick: function(evt) { return handler")
+                .append(i).append("(this, evt)(2500); } };\n");
+            sb.append("if (typeof widget").append(i).append(".name == 'string') widget").append(i).append(".backgroundColor = 'green';\n");
+        }
+        
+        return sb.toString();
+    }
+    
+    private static Script compile(String source) {
+        Context context = Context.enter();
+        
+        try {
+            //Interpreted, since the top-level script is too large for a class file method
+            context.setOptimizationLevel(-1);
+            return context.compileString(source, "test.js", 1, null);
+        } finally {
+            Context.exit();
+        }
+    }
+    
+    private static Object evaluate(String expression) {
+        Context context = Context.enter();
+        
+        try {
+            return context.evaluateString(context.initStandardObjects(), expression, "test.js", 1, null);
+        } finally {
+            Context.exit();
+        }
+    }
+    
+    //Runs the scripts in order in one global scope and returns the value they leave in the global 'result'
+    private static Object run(String... scripts) {
+        Context context = Context.enter();
+        
+        try {
+            Scriptable scope = context.initStandardObjects();
+            for (String script : scripts) context.evaluateString(scope, script, "test.js", 1, null);
+            return scope.get("result", scope);
+        } finally {
+            Context.exit();
+        }
+    }
+    
+    private void assertCompactNumber(String expected, double number) {
+        String compact = Optimizer.compactNumber(number);
+        assertEquals(expected, compact);
+        assertEquals(Double.doubleToLongBits(number), Double.doubleToLongBits(((Number)evaluate(compact)).doubleValue()));
+    }
+    
+    private void assertCompactString(String expected, String str) {
+        String compact = Optimizer.compactString(str);
+        assertEquals(expected, compact);
+        assertEquals(str, evaluate(compact));
+    }
+    
+    private static Optimizer getOptimizer(Script script, boolean scoped, int parallelThreshold) {
+        Optimizer jso = new Optimizer();
+        jso.setScoped(scoped);
+        jso.setThreads(4);
+        jso.setParallelThreshold(parallelThreshold);
+        jso.analyzeNames(script, "test.js");
+        return jso;
+    }
+    
+    private void assertParallelMatchesSerial(boolean scoped) {
+        Script script = compile(getLargeSource());
+        Optimizer serial = getOptimizer(script, scoped, 0);
+        Optimizer parallel = getOptimizer(script, scoped, 1);
+        String serialCode = serial.generate(script, "test.js");
+        String parallelCode = parallel.generate(script, "test.js");
+        assertEquals(serial.getNameMapScript(), parallel.getNameMapScript());
+        assertEquals(serialCode, parallelCode);
+        assertEquals(serial.wrapScope(serialCode), parallel.wrapScope(parallelCode));
+    }
+    
+    public void testParallelGenerateMatchesSerial() {
+        assertParallelMatchesSerial(false);
+    }
+    
+    public void testParallelScopedGenerateMatchesSerial() {
+        assertParallelMatchesSerial(true);
+    }
+    
+    //Scoped, global aliasing, number pooling, literal compaction, alias threshold, name aliasing, lazy threshold
+    private static final Object[][] PROFILES = {
+        {false, false, false, false, 0, true, 0},
+        {true, false, false, true, 0, true, 0},
+        {true, true, true, false, 0, true, 0},
+        {true, true, true, true, 20, true, 100},
+        {false, false, false, true, 0, false, 0}
+    };
+    
+    private static void setProfile(Optimizer jso, Object[] profile) {
+        jso.setScoped((Boolean)profile[0]);
+        jso.setAliasGlobals((Boolean)profile[1]);
+        jso.setPoolNumbers((Boolean)profile[2]);
+        jso.setCompactLiterals((Boolean)profile[3]);
+        jso.setAliasThreshold((Integer)profile[4]);
+        jso.setAliasNames((Boolean)profile[5]);
+        jso.setLazyThreshold((Integer)profile[6]);
+    }
+    
+    private static String getOutput(Optimizer jso, Script script) {
+        String code = jso.generate(script, "test.js");
+        return jso.getNameMapScript() + jso.getNameMapScriptEnd() + jso.wrapScope(code);
+    }
+    
+    public void testDerivedProfilesMatchStandaloneRuns() {
+        StringBuilder sb = new StringBuilder(getLargeSource());
+        for (int i = 0; i < 20; i++) sb.append("document.body.style.width = window.innerWidth - 250000 + 'px';\n");
+        Script script = compile(sb.toString());
+        Optimizer analyzer = getOptimizer(script, false, 1);
+        
+        for (Object[] profile : PROFILES) {
+            Optimizer derived = analyzer.derive();
+            setProfile(derived, profile);
+            Optimizer standalone = new Optimizer();
+            standalone.setThreads(4);
+            standalone.setParallelThreshold(1);
+            setProfile(standalone, profile);
+            standalone.analyzeNames(script, "test.js");
+            assertEquals(Arrays.asList(profile).toString(), getOutput(standalone, script), getOutput(derived, script));
+        }
+    }
+    
+    public void testScopedOutputRunsLikeTheOriginal() {
+        String first = "function Widget(name) { this.name = name; this.style = { backgroundColor: 'red', visibility: 'hidden' }; }\n"
+            + "Widget.prototype.show = function() { this.style.visibility = 'visible'; return this.style.backgroundColor + ':' + this.style.visibility; };\n"
+            + "var first = new Widget('first');\n";
+        String second = "var second = new Widget('second');\n"
+            + "second.style.backgroundColor = second.style.visibility == 'hidden' ? 'blue' : second.style.backgroundColor;\n"
+            + "first.style.visibility = first.style.backgroundColor == 'red' ? 'hidden' : first.style.visibility;\n"
+            + "var result = [first.show(), second.show(), second.name, typeof Widget, second.style.visibility].join();\n";
+        Script firstScript = compile(first);
+        Script secondScript = compile(second);
+        Optimizer jso = new Optimizer();
+        jso.setScoped(true);
+        jso.analyzeNames(firstScript, "first.js");
+        jso.analyzeNames(secondScript, "second.js");
+        String nameMap = jso.getNameMapScript() + jso.getNameMapScriptEnd();
+        String firstCode = jso.wrapScope(jso.generate(firstScript, "first.js"));
+        String secondCode = jso.wrapScope(jso.generate(secondScript, "second.js"));
+        assertTrue(jso.getNameMap().toString(), jso.getNameMap().keySet().containsAll(Arrays.asList("backgroundColor", "visibility")));
+        assertTrue(nameMap, nameMap.contains("this.$jsoMap={"));
+        
+        for (String code : new String[] {firstCode, secondCode}) {
+            assertTrue(code, code.matches("(?s)\\(function\\((\\w+)\\)\\{var (\\w+)=\\1\\.\\2[,\\n].*\\}\\)\\.call\\(this,\\$jsoMap\\)\\n"));
+            assertFalse(code, code.contains("\n\n"));
+        }
+        
+        assertTrue(firstCode, firstCode.contains("\nthis.Widget=Widget\n"));
+        assertEquals("red:visible,blue:visible,second,function,visible", run(first, second));
+        assertEquals(run(first, second), run(nameMap, firstCode, secondCode));
+    }
+    
+    public void testAliasedGlobalsRunLikeTheOriginal() {
+        //Defined apart from the optimized sources, like the globals a browser defines
+        String globals = "this.window = this; this.document = { title: 'doc', body: { id: 'body' } }; this.navigator = { userAgent: 'rhino' };\n";
+        String source = "window.Registry = { count: 0 };\n"
+            + "function track(el) { Registry.count++; return document.title + ':' + el.id + ':' + Registry.count + ':' + navigator.userAgent; }\n"
+            + "var result = [track(document.body), track(document.body), document.body.id, document.title, Registry.count, navigator.userAgent].join();\n";
+        Script script = compile(source);
+        Optimizer jso = new Optimizer();
+        jso.setScoped(true);
+        jso.setAliasGlobals(true);
+        jso.analyzeNames(script, "test.js");
+        String nameMap = jso.getNameMapScript() + jso.getNameMapScriptEnd();
+        String code = jso.wrapScope(jso.generate(script, "test.js"));
+        assertTrue(nameMap, nameMap.matches("(?s).*\\w+=this\\.document[,\\n].*"));
+        assertFalse(nameMap, nameMap.contains("Registry"));
+        assertTrue(code, code.contains("Registry.count"));
+        assertEquals("doc:body:1:rhino,doc:body:2:rhino,body,doc,2,rhino", run(globals, source));
+        assertEquals(run(globals, source), run(globals, nameMap, code));
+    }
+    
+    public void testLazyBodiesAreReportedOnce() {
+        Script script = compile("function outer(a) { var b = a.style.backgroundColor; return function(c) { return c + b + a.style.color; }; }\n"
+            + "var x = outer(document.body);\n");
+        Optimizer jso = getOptimizer(script, false, 0);
+        jso.setLazyThreshold(10);
+        ByteReport report = new ByteReport();
+        jso.setByteReport(report);
+        String code = jso.generate(script, "test.js");
+        assertEquals(code.length(), report.getTotalBytes());
+        assertTrue(report.getBytes(ByteReport.Category.LAZY) > 0);
+        for (ByteReport.Category c : ByteReport.Category.values()) assertTrue(c.name(), report.getBytes(c) >= 0);
+    }
+    
+    public void testLazyStubsSkipStrictAndHotFunctions() {
+        String source = "function sum(list) { var total = 0; for (var i = 0; i < list.length; i++) total += list[i]; return total; }\n"
+            + "function hot(list) { var total = 1; for (var i = 0; i < list.length; i++) total *= list[i]; return total; }\n"
+            + "function strict(a, b) { 'use strict'; var s = a + b; return s * 2 + a - b; }\n"
+            + "var makers = [];\n"
+            + "for (var k = 0; k < 3; k++) makers.push(function(n) { var scaled = n * 10; return scaled + k + sum([n, n]); });\n"
+            + "var result = [sum([1, 2, 3]), makers[0](1), makers[2](2), hot([2, 3]), strict(3, 4), sum.prototype.constructor === sum].join();\n";
+        assertEquals("6,15,27,6,13,true", run(source));
+        Script script = compile(source);
+        Optimizer jso = new Optimizer();
+        jso.setInstrument(true);
+        jso.analyzeNames(script, "test.js");
+        Matcher m = Pattern.compile("\\$jsoCount\\(\"(hot@[^\"]*)\"\\)").matcher(jso.generate(script, "test.js"));
+        assertTrue(m.find());
+        
+        for (boolean scoped : new boolean[] {false, true}) {
+            jso = new Optimizer();
+            jso.setScoped(scoped);
+            jso.setHotProfile(Collections.singleton(m.group(1)), new HashSet<String>());
+            jso.analyzeNames(script, "test.js");
+            jso.setLazyThreshold(10);
+            String code = jso.wrapScope(jso.generate(script, "test.js"));
+            assertFalse(code, code.contains("arguments.callee"));
+            assertTrue(code, code.contains("function sum(list){return("));
+            assertTrue(code, code.contains("function(n){return("));
+            assertFalse(code, code.contains("function hot(list){return("));
+            assertTrue(code, code.contains("function strict(a,b){\"use strict\""));
+            assertEquals(run(source), run(jso.getNameMapScript() + jso.getNameMapScriptEnd(), code));
+        }
+    }
+    
+    public void testCompactNumberExponents() {
+        assertCompactNumber("1e6", 1000000);
+        assertCompactNumber("15e5", 1500000);
+        assertCompactNumber("1e21", 1e21);
+        assertCompactNumber("12345e20", 1.2345e24);
+        assertCompactNumber("100", 100);
+        assertCompactNumber("0", 0);
+    }
+    
+    public void testCompactNumberNegativeExponents() {
+        assertCompactNumber("1e-6", 0.000001);
+        assertCompactNumber("15e-8", 1.5e-7);
+        assertCompactNumber("123e-20", 1.23e-18);
+        assertCompactNumber(".001", 0.001);
+    }
+    
+    public void testCompactNumberFractions() {
+        assertCompactNumber(".5", 0.5);
+        assertCompactNumber(".25", 0.25);
+        assertCompactNumber("1.5", 1.5);
+    }
+    
+    public void testCompactNumberHex() {
+        assertCompactNumber("0xffffffffffff", 281474976710655L);
+        assertCompactNumber("68719476735", 68719476735L);
+        assertCompactNumber("255", 255);
+        assertCompactNumber("65535", 65535);
+    }
+    
+    public void testCompactStringQuotes() {
+        assertCompactString("\"abc\"", "abc");
+        assertCompactString("\"it's\"", "it's");
+        assertCompactString("'say \"hi\"'", "say \"hi\"");
+        assertCompactString("\"a'b\\\"c\"", "a'b\"c");
+        assertCompactString("'it\\'s \"a\" \"b\"'", "it's \"a\" \"b\"");
+    }
+    
+    public void testCompactStringEscapes() {
+        assertCompactString("\"\\xe9\"", "\u00e9");
+        assertCompactString("\"\\x01\\x7f\"", "\u0001\u007f");
+        assertCompactString("\"\\u20ac\\u0100\"", "\u20ac\u0100");
+        assertCompactString("\"a\\nb\\tc\\\\d\"", "a\nb\tc\\d");
+    }
+    
+    public void testNumbersArePooledOnlyOutsideCaseLabels() {
+        Script script = compile("function f(n) { switch (n) { case 123456789: return n * 123456789; case -123456789: return n ? 1 : 123456789; }\n"
+            + "return [123456789, 123456789, 123456789, 123456789]; }\n");
+        Optimizer jso = getOptimizer(script, true, 0);
+        String code = jso.generate(script, "test.js");
+        assertEquals(8, code.split("123456789", -1).length - 1);
+        jso = getOptimizer(script, true, 0);
+        jso.setPoolNumbers(true);
+        code = jso.generate(script, "test.js");
+        assertTrue(code, code.contains("case 123456789:") && code.contains("-123456789:"));
+        assertEquals(2, code.split("123456789", -1).length - 1);
+        assertTrue(jso.getNameMapScript().contains("=123456789"));
+    }
+    
+    private static int getScopedSize(Script script, int aliasThreshold) {
+        Optimizer jso = new Optimizer();
+        jso.setScoped(true);
+        jso.setAliasThreshold(aliasThreshold);
+        jso.analyzeNames(script, "test.js");
+        String nameMap = jso.getNameMapScript() + jso.getNameMapScriptEnd();
+        return nameMap.length() + jso.wrapScope(jso.generate(script, "test.js")).length();
+    }
+    
+    public void testScopedSavingsAreExact() {
+        Script script = compile("a.aVeryLongPropName19 = b.aVeryLongPropName19;\n"
+            + "a.backgroundColor = b.backgroundColor; b.backgroundColor = c.backgroundColor; c.backgroundColor = d.backgroundColor;\n");
+        Optimizer jso = new Optimizer();
+        jso.setScoped(true);
+        jso.analyzeNames(script, "test.js");
+        assertEquals(Integer.valueOf(-1), jso.getExcludedNames().get("aVeryLongPropName19"));
+        assertTrue(jso.getNameMap().containsKey("backgroundColor"));
+        //Aliasing the excluded name anyway costs exactly the byte it was predicted to
+        assertEquals(getScopedSize(script, 0) + 1, getScopedSize(script, -2));
+    }
+    
+    public void testHotFunctionKeysSurviveEditsElsewhere() {
+        String function = "var Grid = {}; Grid.paint = function(cells) { for (var i = 0; i < cells.length; i++) cells[i].style.color = cells[i].style.background; };\n";
+        Script script = compile(function);
+        Optimizer jso = new Optimizer();
+        jso.setInstrument(true);
+        jso.analyzeNames(script, "test.js");
+        Matcher m = Pattern.compile("\\$jsoCount\\(\"([^\"]*)\"\\)").matcher(jso.generate(script, "test.js"));
+        assertTrue(m.find());
+        String key = m.group(1);
+        assertTrue(key, key.startsWith("paint@"));
+        
+        String other = "document.body.style.color = document.body.style.background;\n";
+        script = compile("var unrelated = [1, 2, 3];\n" + function + other + other + other + other);
+        jso = new Optimizer();
+        jso.setHotProfile(new HashSet<String>(Arrays.asList(key, "paint@0")), new HashSet<String>());
+        jso.analyzeNames(script, "other.js");
+        String code = jso.generate(script, "other.js");
+        assertTrue(code, code.contains("cells[i].style.color=cells[i].style.background"));
+        assertFalse(code, code.contains("body.style"));
+        assertEquals(Collections.singleton("paint@0"), jso.getUnmatchedHotFunctions());
+    }
+    
+    public void testSketchedNamesNeedAConfirmedRepeat() {
+        Script script = compile("a.rarelyUsedProperty = 1; b.rarelyUsedProperty = 2;\n"
+            + "a.oftenUsedProperty = 1; b.oftenUsedProperty = 2; c.oftenUsedProperty = 3; d.oftenUsedProperty = 4; e['oftenUsedProperty'] = 5;\n");
+        Optimizer jso = new Optimizer();
+        jso.setSketchThreshold(8);
+        jso.analyzeNames(script, "test.js");
+        jso.generate(script, "test.js");
+        Map<String, String> nameMap = jso.getNameMap();
+        assertFalse(nameMap.containsKey("rarelyUsedProperty"));
+        assertTrue(nameMap.toString(), nameMap.containsKey("oftenUsedProperty"));
+    }
+    
+    private static final String HANDLER = "function(e) { e.target.style.visibility = e.target.uniquelyNamedProperty; }";
+    
+    private static Optimizer getSharingOptimizer(Script script, String hotFunction) {
+        Optimizer jso = new Optimizer();
+        jso.setFunctionThreshold(16);
+        if (hotFunction != null) jso.setHotProfile(Collections.singleton(hotFunction), new HashSet<String>());
+        jso.analyzeNames(script, "test.js");
+        return jso;
+    }
+    
+    public void testSharedFunctionsAreCountedOnceAndSkipConstructors() {
+        Script script = compile("var a = [" + HANDLER + ", " + HANDLER + ", " + HANDLER + "];\n"
+            + "var P = function(x) { this.coordinate = x; this.ordinate = x; };\n"
+            + "var Q = function(x) { this.coordinate = x; this.ordinate = x; };\n"
+            + "var p = new P(1), q = Q(2);\n");
+        Optimizer jso = getSharingOptimizer(script, null);
+        String code = jso.generate(script, "test.js");
+        assertEquals(1, jso.getFunctionCount());
+        assertEquals(code, 2, code.split("function\\(x\\)", -1).length - 1);
+        assertFalse(jso.getNameMap().containsKey("uniquelyNamedProperty"));
+    }
+    
+    public void testSharedFunctionsKeepHotProperties() {
+        String other = "document.body.style.visibility = document.body.target;\n";
+        Script script = compile("var a = [" + HANDLER + ", " + HANDLER + ", " + HANDLER + "];\n" + other + other + other + other);
+        Optimizer jso = new Optimizer();
+        jso.setInstrument(true);
+        jso.analyzeNames(script, "test.js");
+        Matcher m = Pattern.compile("\\$jsoCount\\(\"([^\"]*)\"\\)").matcher(jso.generate(script, "test.js"));
+        assertTrue(m.find());
+        jso = getSharingOptimizer(script, m.group(1));
+        String code = jso.generate(script, "test.js");
+        assertEquals(1, jso.getFunctionCount());
+        assertTrue(jso.getUnmatchedHotFunctions().isEmpty());
+        assertFalse(code, code.contains("body.style"));
+        assertTrue(jso.getNameMapScript(), jso.getNameMapScript().contains("e.target.style.visibility"));
+    }
+}
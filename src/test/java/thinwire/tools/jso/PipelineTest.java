@@ -0,0 +1,151 @@
+package thinwire.tools.jso;
+
+/*
+ * Copyright 2001-2005 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class PipelineTest extends TestCase {
+    private static List<Integer> getItems(int count) {
+        List<Integer> items = new ArrayList<Integer>();
+        //Boxed once each, since the pipeline tells items apart by identity
+        for (int i = 0; i < count; i++) items.add(new Integer(i));
+        return items;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    //Takes the items out of order, the later of every few first, and drops the multiples of dropEvery
+    private static Pipeline.Stage<Integer> getShuffleStage(final int dropEvery) {
+        return new Pipeline.Stage<Integer>("shuffle", 4, false) {
+            boolean process(Integer item) {
+                sleep(7 - item % 7);
+                return dropEvery == 0 || item % dropEvery != 0;
+            }
+        };
+    }
+
+    private static Pipeline.Stage<Integer> getCollectStage(final List<Integer> collected) {
+        return new Pipeline.Stage<Integer>("collect") {
+            boolean process(Integer item) {
+                collected.add(item);
+                return true;
+            }
+        };
+    }
+
+    public void testOrderedStageTakesItemsInFeedOrder() throws Exception {
+        List<Integer> collected = Collections.synchronizedList(new ArrayList<Integer>());
+        Pipeline<Integer> pipeline = new Pipeline<Integer>("test", 2);
+        pipeline.add(getShuffleStage(0)).add(getCollectStage(collected));
+        pipeline.run(getItems(60));
+        assertEquals(getItems(60), collected);
+    }
+
+    public void testOrderedStageSkipsDroppedItems() throws Exception {
+        List<Integer> collected = Collections.synchronizedList(new ArrayList<Integer>());
+        Pipeline<Integer> pipeline = new Pipeline<Integer>("test", 2);
+        pipeline.add(getShuffleStage(5)).add(getCollectStage(collected));
+        pipeline.run(getItems(60));
+        List<Integer> expected = new ArrayList<Integer>();
+        for (Integer i : getItems(60)) if (i % 5 != 0) expected.add(i);
+        assertEquals(expected, collected);
+    }
+
+    public void testOrderedStageHoldsBackBoundedItems() throws Exception {
+        final AtomicInteger passed = new AtomicInteger();
+        final int[] aheadOfFirst = new int[1];
+        Pipeline<Integer> pipeline = new Pipeline<Integer>("test", 2);
+
+        pipeline.add(new Pipeline.Stage<Integer>("slow first", 4, false) {
+            boolean process(Integer item) {
+                if (item == 0) sleep(300);
+                passed.incrementAndGet();
+                return true;
+            }
+        }).add(new Pipeline.Stage<Integer>("ordered") {
+            boolean process(Integer item) {
+                if (item == 0) aheadOfFirst[0] = passed.get() - 1;
+                return true;
+            }
+        });
+
+        pipeline.run(getItems(100));
+        //The queue size plus the threads of the stage before
+        assertTrue(String.valueOf(aheadOfFirst[0]), aheadOfFirst[0] <= 2 + 4);
+    }
+
+    public void testFailureIsThrownAndRemainingItemsAreDrained() throws Exception {
+        final AtomicInteger after = new AtomicInteger();
+        List<Integer> collected = Collections.synchronizedList(new ArrayList<Integer>());
+        Pipeline<Integer> pipeline = new Pipeline<Integer>("test", 2);
+
+        pipeline.add(new Pipeline.Stage<Integer>("fail", 4, false) {
+            boolean process(Integer item) {
+                if (item == 3) throw new IllegalStateException("item 3");
+                return true;
+            }
+        }).add(getCollectStage(collected)).add(new Pipeline.Stage<Integer>("after", 2, false) {
+            boolean process(Integer item) {
+                after.incrementAndGet();
+                return true;
+            }
+        });
+
+        try {
+            pipeline.run(getItems(1000));
+            fail("The stage's failure was not thrown");
+        } catch (IllegalStateException e) {
+            assertEquals("item 3", e.getMessage());
+        }
+
+        assertFalse(collected.contains(3));
+        assertTrue(collected.size() < 1000);
+        assertTrue(after.get() <= collected.size());
+    }
+
+    public void testFailureInBeginIsThrown() throws Exception {
+        Pipeline<Integer> pipeline = new Pipeline<Integer>("test", 2);
+
+        pipeline.add(new Pipeline.Stage<Integer>("begin", 2, false) {
+            void begin() throws Exception {
+                throw new java.io.IOException("begin");
+            }
+
+            boolean process(Integer item) {
+                return true;
+            }
+        }).add(getCollectStage(new ArrayList<Integer>()));
+
+        try {
+            pipeline.run(getItems(100));
+            fail("The failure in begin was not thrown");
+        } catch (java.io.IOException e) {
+            assertEquals("begin", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package thinwire.tools.jso;
+
+/*
+ * Copyright 2001-2005 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+public class SourceScannerTest extends TestCase {
+    private static final String[] FILES = {
+        "a.js", "ab.js", "abc.js", "a.txt",
+        "lib/b.js", "lib/deep/c.js", "lib/deep/c.txt",
+        "build/d.js", "build/deep/e.js",
+        "test/f.js", "test/lib/g.js"
+    };
+
+    private File root;
+
+    protected void setUp() throws Exception {
+        root = File.createTempFile("jso-scan", "");
+        root.delete();
+
+        for (String name : FILES) {
+            File f = new File(root, name);
+            f.getParentFile().mkdirs();
+            f.createNewFile();
+        }
+    }
+
+    protected void tearDown() {
+        Corpus.delete(root);
+    }
+
+    //The paths of the files found, relative to the root and separated by '/'
+    private List<String> scan(List<String> includes, List<String> excludes, File... excludedDirs) throws IOException {
+        String prefix = root.getCanonicalPath() + File.separator;
+        List<String> paths = new ArrayList<String>();
+
+        for (File f : new SourceScanner(root, includes, excludes, Arrays.asList(excludedDirs)).scan(2)) {
+            paths.add(f.getPath().substring(prefix.length()).replace(File.separatorChar, '/'));
+        }
+
+        return paths;
+    }
+
+    private static boolean matches(List<Pattern> patterns, String path) {
+        for (Pattern p : patterns) {
+            if (p.matcher(path).matches()) return true;
+        }
+
+        return false;
+    }
+
+    public void testStarMatchesWithinOneSegment() throws Exception {
+        assertEquals(Arrays.asList("a.js", "ab.js", "abc.js"), scan(Arrays.asList("*.js"), null));
+        assertEquals(Arrays.asList("lib/b.js"), scan(Arrays.asList("lib/*.js"), null));
+    }
+
+    public void testQuestionMarkMatchesOneCharacter() throws Exception {
+        assertEquals(Arrays.asList("ab.js"), scan(Arrays.asList("a?.js"), null));
+        assertEquals(Arrays.asList("a.js", "a.txt"), scan(Arrays.asList("a.???", "a.??"), null));
+    }
+
+    public void testDoubleStarMatchesAnyNumberOfDirectories() throws Exception {
+        assertEquals(Arrays.asList("a.js", "ab.js", "abc.js", "build/d.js", "build/deep/e.js", "lib/b.js",
+                "lib/deep/c.js", "test/f.js", "test/lib/g.js"), scan(Arrays.asList("**/*.js"), null));
+        assertEquals(Arrays.asList("lib/b.js", "lib/deep/c.js", "test/lib/g.js"), scan(Arrays.asList("**/lib/**/*.js"), null));
+        assertEquals(Arrays.asList("lib/b.js", "lib/deep/c.js", "lib/deep/c.txt"), scan(Arrays.asList("lib/**"), null));
+    }
+
+    public void testTrailingSlashMatchesTheWholeDirectory() throws Exception {
+        assertEquals(scan(Arrays.asList("lib/**"), null), scan(Arrays.asList("lib/"), null));
+        assertEquals(Arrays.asList("build/d.js", "build/deep/e.js"), scan(Arrays.asList("\\build\\"), null));
+    }
+
+    public void testExcludesOverrideIncludes() throws Exception {
+        assertEquals(Arrays.asList("a.js", "ab.js", "abc.js", "lib/b.js", "lib/deep/c.js"),
+                scan(Arrays.asList("**/*.js"), Arrays.asList("build/", "test/**")));
+        assertEquals(Arrays.asList("a.js", "abc.js", "lib/b.js", "test/f.js"),
+                scan(Arrays.asList("**/*.js"), Arrays.asList("**/deep/**", "**/lib/g.js", "ab.js", "build/**")));
+        assertEquals(Arrays.asList("a.js", "ab.js", "abc.js", "lib/b.js", "lib/deep/c.js"),
+                scan(Arrays.asList("**/*.js"), null, new File(root, "build").getCanonicalFile(),
+                        new File(root, "test").getCanonicalFile()));
+    }
+
+    public void testOnlyWholeDirectoryExcludesPrune() throws Exception {
+        List<Pattern> dirs = SourceScanner.compile(Arrays.asList("build/**", "/lib/", "**/deep/**", "test/*", "**", "*.js"), true);
+        assertEquals(3, dirs.size());
+        assertTrue(matches(dirs, "build"));
+        assertTrue(matches(dirs, "lib"));
+        assertTrue(matches(dirs, "deep"));
+        assertTrue(matches(dirs, "lib/deep"));
+        assertFalse(matches(dirs, "build/deep/x"));
+        assertFalse(matches(dirs, "test"));
+        assertFalse(matches(dirs, "libs"));
+    }
+}